@@ -0,0 +1,144 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import BayesianNetwork.*;
+
+/**
+ * Deadline aware inference, returning the best answer available within a
+ * time budget with a 95% confidence interval.
+ *
+ * The exact engines are used when the planner predicts they finish within
+ * the budget, and the answer is exact. Otherwise short Gibbs chains are run
+ * one after the other until the deadline or until the interval is narrow
+ * enough; the estimate is their mean and the interval comes from the spread
+ * between chains, which accounts for the correlation of samples within a
+ * chain. Each chain runs a number of sweeps over the hidden variables after
+ * a burn-in, so that chains are comparable whatever the size of the
+ * network, and the interval uses the quantiles of Student's t as only a few
+ * chains may fit in the budget. No chain is started that is not expected to
+ * end before the deadline; with fewer than two chains the interval is
+ * [0, 1].
+ *
+ * Queries are in the same format as VariableElimination.
+ */
+public class AnytimeInference implements Inference {
+
+	// Sweeps over the hidden variables of each Gibbs chain, counted and
+	// discarded.
+	static final int SWEEPS = 100;
+	static final int BURN_IN = 20;
+
+	// 97.5% quantiles of Student's t by degrees of freedom, 1.96 beyond.
+	static final double[] T = { Double.NaN, 12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+			2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086, 2.080, 2.074, 2.069, 2.064, 2.060,
+			2.056, 2.052, 2.048, 2.045, 2.042 };
+
+	BayesianNetwork network;
+	QueryPlanner planner;
+	long budget; // nanoseconds
+	double accuracy;
+
+	/**
+	 * The answer to a query: the estimate and its 95% confidence interval,
+	 * reduced to the estimate itself when exact.
+	 */
+	public static class Estimate {
+		public final double probability;
+		public final double lower;
+		public final double upper;
+		public final long samples; // 0 when exact
+		public final long time; // nanoseconds
+
+		Estimate(double probability, double lower, double upper, long samples, long time) {
+			this.probability = probability;
+			this.lower = lower;
+			this.upper = upper;
+			this.samples = samples;
+			this.time = time;
+		}
+
+		public boolean exact() {
+			return samples == 0;
+		}
+
+		public String toString() {
+			if (exact())
+				return String.format("%.6f", probability);
+			return String.format("%.6f [%.6f, %.6f]", probability, lower, upper);
+		}
+	}
+
+	/**
+	 * @param budget
+	 *            - the time allowed to each query of ask(String).
+	 * @param accuracy
+	 *            - the half width of the interval at which sampling stops
+	 *            before the deadline.
+	 */
+	public AnytimeInference(BayesianNetwork network, long budget, TimeUnit unit, double accuracy) {
+		this.network = network;
+		this.budget = unit.toNanos(budget);
+		this.accuracy = accuracy;
+		planner = new QueryPlanner(network);
+	}
+
+	/**
+	 * The answer within the default budget, with its interval if inexact.
+	 */
+	@Override
+	public String ask(String query) {
+		return ask(query, budget, TimeUnit.NANOSECONDS).toString();
+	}
+
+	/**
+	 * The best answer available within the time allowed.
+	 */
+	public Estimate ask(String query, long timeout, TimeUnit unit) {
+		long start = System.nanoTime();
+		long deadline = start + unit.toNanos(timeout);
+		String[] q = query.split("\\|");
+		Event target = network.parseEvent(q[0]);
+		Condition evidence = network.parseCondition(q.length > 1 ? q[1] : "");
+
+		// Only exact engines are allowed to the planner.
+		QueryPlanner.Decision decision = planner.plan(query);
+		if (start + decision.predictedTime <= deadline) {
+			double p = Double.parseDouble(planner.execute(decision));
+			return new Estimate(p, p, p, 0, System.nanoTime() - start);
+		}
+
+		// Progressive sampling, each chain giving one estimate.
+		int hidden = 0;
+		for (Variable v : network.nodes.values())
+			if (!evidence.mention(v))
+				hidden++;
+		int steps = (int) Math.min(Integer.MAX_VALUE, (long) SWEEPS * Math.max(1, hidden));
+		MarkovChainMonteCarlo mcmc = new MarkovChainMonteCarlo(network, steps);
+		mcmc.setBurnIn((int) Math.min(Integer.MAX_VALUE, (long) BURN_IN * hidden));
+		List<Double> chains = new ArrayList<Double>();
+		double mean = 0.5, half = 0.5;
+		long now = System.nanoTime(), sampling = now;
+		while (chains.isEmpty() ? now < deadline
+				: (chains.size() < 2 || half > accuracy) && now + (now - sampling) / chains.size() <= deadline) {
+			chains.add(Double.parseDouble(mcmc.ask(target, evidence)));
+			now = System.nanoTime();
+
+			double sum = 0.0, squares = 0.0;
+			for (double p : chains) {
+				sum += p;
+				squares += p * p;
+			}
+			int k = chains.size();
+			mean = sum / k;
+			if (k > 1) {
+				double variance = Math.max(0.0, (squares - k * mean * mean) / (k - 1));
+				half = (k - 1 < T.length ? T[k - 1] : 1.96) * Math.sqrt(variance / k);
+			}
+		}
+		if (chains.size() < 2)
+			half = 1.0; // no spread to measure
+		return new Estimate(mean, Math.max(0.0, mean - half), Math.min(1.0, mean + half),
+				Math.max(1, (long) chains.size() * steps), now - start); // never reported as exact
+	}
+}
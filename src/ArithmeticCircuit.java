@@ -0,0 +1,552 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import BayesianNetwork.*;
+
+/**
+ * An arithmetic circuit compiled from a network, for networks queried many
+ * times with changing evidence.
+ *
+ * The circuit is the trace of variable elimination run symbolically over all
+ * variables: its leaves are the evidence indicators (one per value of each
+ * variable) and the entries of the probability tables, and each product or
+ * sum done by the elimination is a node. Identical nodes are only made once.
+ * The nodes are stored in flat arrays in topological order, children first.
+ *
+ * Evaluating the circuit upwards with the indicators of some evidence gives
+ * P(evidence), then one pass downwards gives the derivative of P(evidence)
+ * with respect to every leaf: for an indicator it is P(x, evidence without
+ * the variable), so every posterior marginal at once, and for a table entry
+ * it is the sensitivity of P(evidence) to that parameter. Both passes are
+ * linear in the size of the circuit and allocate nothing.
+ *
+ * A circuit holds its evaluation buffers and must not be shared between
+ * threads; copy() gives another one sharing the structure. It remembers the
+ * version of the network it read, and ask() follows the updates made since:
+ * replaced tables are swapped into the parameter leaves, while a change of
+ * structure compiles the circuit again.
+ */
+public class ArithmeticCircuit implements Inference {
+
+	static final byte LEAF = 0, SUM = 1, PRODUCT = 2;
+
+	BayesianNetwork network;
+	List<Variable> variables; // in the order of the evidence arrays
+
+	// structure, shared by copies
+	byte[] type;
+	int[] first; // the children of node i are children[first[i]] to children[first[i + 1] - 1]
+	int[] children;
+	double[] leaves; // value of the leaves, indicators at 1
+	int[][] indicators; // node of each value of each variable
+	int[][] parameters; // node of each table entry (family index), null if not tabular
+	int root;
+	Variable.Family[] read; // the family each variable was read from
+	long version; // of the network when the parameters were read
+
+	// evaluation
+	double[] value;
+	double[] partial; // product of the non zero children of product nodes
+	int[] zeros; // number of zero children of product nodes
+	double[] derivative;
+
+	private ArithmeticCircuit(ArithmeticCircuit other) {
+		network = other.network;
+		variables = other.variables;
+		type = other.type;
+		first = other.first;
+		children = other.children;
+		leaves = other.leaves;
+		indicators = other.indicators;
+		parameters = other.parameters;
+		root = other.root;
+		read = other.read.clone();
+		version = other.version;
+		allocate();
+	}
+
+	/**
+	 * Compile the network in its current version.
+	 */
+	public ArithmeticCircuit(BayesianNetwork network) {
+		this.network = network;
+		build();
+	}
+
+	private void build() {
+		do {
+			version = network.stableVersion();
+			new Compiler().compile();
+		} while (network.version() != version);
+		allocate();
+	}
+
+	private void allocate() {
+		value = leaves.clone();
+		partial = new double[type.length];
+		zeros = new int[type.length];
+		derivative = new double[type.length];
+	}
+
+	/**
+	 * Another circuit sharing the structure, with its own buffers and
+	 * parameters.
+	 */
+	public ArithmeticCircuit copy() {
+		ArithmeticCircuit ret = new ArithmeticCircuit(this);
+		System.arraycopy(value, 0, ret.value, 0, value.length);
+		return ret;
+	}
+
+	/**
+	 * A circuit of a network derived from the one of this circuit, see
+	 * BayesianNetwork.derive(). The structure is shared and only the entries
+	 * of the overridden tables are replaced, unless the overlay changes the
+	 * kind of a distribution, which compiles it again.
+	 */
+	public ArithmeticCircuit derive(BayesianNetwork overlay) {
+		if (overlay.nodes != network.nodes)
+			return new ArithmeticCircuit(overlay);
+		ArithmeticCircuit ret = copy();
+		ret.network = overlay;
+		ret.version = -1; // compare every family with the overlay
+		ret.update();
+		return ret;
+	}
+
+	/**
+	 * Follow the updates of the network since its tables were last read. The
+	 * entries of a replaced table are written into its parameter leaves, and a
+	 * change of parents or of the kind of a distribution compiles the circuit
+	 * again. Parameters set by hand are kept until their table is replaced.
+	 */
+	void update() {
+		long v;
+		do {
+			v = network.stableVersion();
+			if (v == version)
+				return;
+			for (int i = 0; i < variables.size(); i++) {
+				Variable.Family f = network.family(variables.get(i));
+				if (f == read[i])
+					continue;
+				if (f.parents != read[i].parents || parameters[i] == null || f.probabilities == null) {
+					build();
+					return;
+				}
+				List<Variable> family = new ArrayList<Variable>(f.parents);
+				family.add(variables.get(i));
+				List<Condition> conditions = Variable.allConditions(family);
+				for (int k = 0; k < conditions.size(); k++)
+					value[parameters[i][k]] = f.probabilities.get(conditions.get(k));
+				read[i] = f;
+			}
+		} while (network.version() != v);
+		version = v;
+	}
+
+	/**
+	 * Number of nodes.
+	 */
+	public int size() {
+		return type.length;
+	}
+
+	/**
+	 * Number of edges.
+	 */
+	public int edges() {
+		return children.length;
+	}
+
+	/**
+	 * The variables in the order of the evidence arrays.
+	 */
+	public List<Variable> variables() {
+		return Collections.unmodifiableList(variables);
+	}
+
+	/**
+	 * Replace a table entry of a variable, without compiling again.
+	 *
+	 * @param row
+	 *            - the entry, indexed with the first parent as most
+	 *            significant digit and the variable as least.
+	 */
+	public void setParameter(int var, int row, double p) {
+		value[parameters[var][row]] = p;
+	}
+
+	/**
+	 * A table entry of a variable, indexed as in setParameter.
+	 */
+	public double getParameter(int var, int row) {
+		return value[parameters[var][row]];
+	}
+
+	/**
+	 * The upward pass.
+	 *
+	 * @param evidence
+	 *            - the index of the observed value of each variable, in the
+	 *            order of variables(), or RecordReader.MISSING.
+	 * @return P(evidence)
+	 */
+	public double evaluate(int[] evidence) {
+		for (int v = 0; v < indicators.length; v++)
+			for (int k = 0; k < indicators[v].length; k++)
+				value[indicators[v][k]] = evidence[v] == RecordReader.MISSING || evidence[v] == k ? 1.0 : 0.0;
+
+		for (int i = 0; i <= root; i++) {
+			if (type[i] == SUM) {
+				double s = 0.0;
+				for (int c = first[i]; c < first[i + 1]; c++)
+					s += value[children[c]];
+				value[i] = s;
+			} else if (type[i] == PRODUCT) {
+				double p = 1.0;
+				int z = 0;
+				for (int c = first[i]; c < first[i + 1]; c++) {
+					double x = value[children[c]];
+					if (x == 0.0)
+						z++;
+					else
+						p *= x;
+				}
+				partial[i] = p;
+				zeros[i] = z;
+				value[i] = z > 0 ? 0.0 : p;
+			}
+		}
+		return value[root];
+	}
+
+	/**
+	 * The downward pass, after evaluate, computing the derivative of
+	 * P(evidence) with respect to every node.
+	 */
+	public void differentiate() {
+		Arrays.fill(derivative, 0.0);
+		derivative[root] = 1.0;
+		for (int i = root; i >= 0; i--) {
+			double d = derivative[i];
+			if (d == 0.0 || type[i] == LEAF)
+				continue;
+			if (type[i] == SUM) {
+				for (int c = first[i]; c < first[i + 1]; c++)
+					derivative[children[c]] += d;
+			} else if (zeros[i] == 0) {
+				for (int c = first[i]; c < first[i + 1]; c++)
+					derivative[children[c]] += d * partial[i] / value[children[c]];
+			} else if (zeros[i] == 1) {
+				// only the zero child has a non zero derivative
+				for (int c = first[i]; c < first[i + 1]; c++)
+					if (value[children[c]] == 0.0)
+						derivative[children[c]] += d * partial[i];
+			}
+		}
+	}
+
+	/**
+	 * The posterior probability of a value of a variable, after
+	 * differentiate. For an observed variable, its own observation is left
+	 * out of the evidence.
+	 */
+	public double marginal(int var, int val) {
+		double total = 0.0;
+		for (int k = 0; k < indicators[var].length; k++)
+			total += derivative[indicators[var][k]];
+		return derivative[indicators[var][val]] / total;
+	}
+
+	/**
+	 * The derivative of P(evidence) with respect to a table entry, after
+	 * differentiate.
+	 */
+	public double parameterDerivative(int var, int row) {
+		return derivative[parameters[var][row]];
+	}
+
+	/**
+	 * @param query
+	 *            - a String in the format "A = a1 | B = b2, C = c1", the
+	 *            spacing is not important.
+	 * @return - the result value in string.
+	 */
+	@Override
+	public String ask(String query) {
+		String[] q = query.split("\\|");
+		Event target = network.parseEvent(q[0]);
+		Condition evidence = network.parseCondition(q.length > 1 ? q[1] : "");
+		return String.format("%.6f", posterior(target.node, evidence)[index(target.node, target.value)]);
+	}
+
+	/**
+	 * The posterior of a variable given evidence, by value in domain order,
+	 * from one upward and one downward pass.
+	 */
+	public double[] posterior(Variable target, Condition evidence) {
+		update();
+		int[] observed = new int[variables.size()];
+		for (int v = 0; v < observed.length; v++) {
+			Value val = evidence.get(variables.get(v));
+			observed[v] = val == null ? RecordReader.MISSING : index(variables.get(v), val);
+		}
+		evaluate(observed);
+		differentiate();
+		int var = variables.indexOf(target);
+		double[] ret = new double[indicators[var].length];
+		for (int k = 0; k < ret.length; k++)
+			ret[k] = marginal(var, k);
+		return ret;
+	}
+
+	static int index(Variable var, Value val) {
+		return new ArrayList<Value>(var.domain.values()).indexOf(val);
+	}
+
+	/**
+	 * Symbolic variable elimination, making the nodes of the circuit.
+	 */
+	private class Compiler {
+		List<Byte> types = new ArrayList<Byte>();
+		List<int[]> edges = new ArrayList<int[]>();
+		List<Double> values = new ArrayList<Double>();
+		Map<Node, Integer> unique = new HashMap<Node, Integer>();
+		Map<Double, Integer> constants = new HashMap<Double, Integer>();
+		int zero, one;
+
+		/**
+		 * A factor whose entries are nodes, indexed with the first variable as
+		 * most significant digit.
+		 */
+		class Symbolic {
+			List<Variable> variables;
+			int[] nodes;
+
+			Symbolic(List<Variable> variables) {
+				this.variables = variables;
+				nodes = new int[(int) VariableElimination.size(variables)];
+			}
+
+			/**
+			 * The index of the entry matching an assignment of some variables
+			 * including those of the factor.
+			 */
+			int index(List<Variable> vars, int[] assignment) {
+				int ret = 0;
+				for (Variable v : variables)
+					ret = ret * v.domain.size() + assignment[vars.indexOf(v)];
+				return ret;
+			}
+		}
+
+		void compile() {
+			variables = new ArrayList<Variable>();
+			Condition none = new Condition(new ArrayList<Event>());
+			Map<Variable, List<Factor>> families = new VariableElimination(network).families(none, null);
+			variables.addAll(families.keySet());
+			zero = constant(0.0);
+			one = constant(1.0);
+
+			List<Factor> real = new ArrayList<Factor>();
+			List<Symbolic> factors = new ArrayList<Symbolic>();
+			indicators = new int[variables.size()][];
+			parameters = new int[variables.size()][];
+			read = new Variable.Family[variables.size()];
+			for (int i = 0; i < variables.size(); i++) {
+				Variable v = variables.get(i);
+				read[i] = network.family(v);
+				boolean tabular = read[i].distribution == null;
+				if (tabular)
+					parameters[i] = new int[(int) VariableElimination.size(families.get(v).get(0).variables)];
+				for (Factor f : families.get(v)) {
+					real.add(f);
+					factors.add(leaves(f, tabular ? parameters[i] : null));
+				}
+
+				Symbolic lambda = new Symbolic(Arrays.asList(v));
+				for (int k = 0; k < lambda.nodes.length; k++)
+					lambda.nodes[k] = leaf(1.0);
+				indicators[i] = lambda.nodes;
+				factors.add(lambda);
+			}
+
+			List<Variable> query = Collections.emptyList();
+			for (Variable next : VariableElimination.order(real, query)) {
+				List<Symbolic> joined = new ArrayList<Symbolic>();
+				for (Iterator<Symbolic> it = factors.iterator(); it.hasNext();) {
+					Symbolic f = it.next();
+					if (f.variables.contains(next)) {
+						joined.add(f);
+						it.remove();
+					}
+				}
+				if (!joined.isEmpty())
+					factors.add(sumOut(join(joined), next));
+			}
+			int[] rest = new int[factors.size()];
+			for (int i = 0; i < rest.length; i++)
+				rest[i] = factors.get(i).nodes[0];
+			root = node(PRODUCT, rest);
+
+			type = new byte[types.size()];
+			first = new int[types.size() + 1];
+			leaves = new double[types.size()];
+			int n = 0;
+			for (int i = 0; i < type.length; i++) {
+				type[i] = types.get(i);
+				leaves[i] = values.get(i);
+				first[i] = n;
+				n += edges.get(i).length;
+			}
+			first[type.length] = n;
+			children = new int[n];
+			for (int i = 0; i < type.length; i++)
+				System.arraycopy(edges.get(i), 0, children, first[i], edges.get(i).length);
+		}
+
+		/**
+		 * The symbolic factor of a real one, with a parameter leaf per entry
+		 * if the indices are given, or shared constants otherwise.
+		 */
+		Symbolic leaves(Factor f, int[] parameters) {
+			Symbolic ret = new Symbolic(new ArrayList<Variable>(f.variables));
+			List<Condition> conditions = Variable.allConditions(ret.variables);
+			for (int k = 0; k < ret.nodes.length; k++) {
+				double p = f.p.get(conditions.get(k));
+				ret.nodes[k] = parameters == null ? constant(p) : (parameters[k] = leaf(p));
+			}
+			return ret;
+		}
+
+		Symbolic join(List<Symbolic> factors) {
+			if (factors.size() == 1)
+				return factors.get(0);
+			List<Variable> vars = new ArrayList<Variable>();
+			for (Symbolic f : factors)
+				for (Variable v : f.variables)
+					if (!vars.contains(v))
+						vars.add(v);
+			Symbolic ret = new Symbolic(vars);
+			int[] assignment = new int[vars.size()];
+			int[] kids = new int[factors.size()];
+			for (int k = 0; k < ret.nodes.length; k++) {
+				decode(k, vars, assignment);
+				for (int j = 0; j < kids.length; j++)
+					kids[j] = factors.get(j).nodes[factors.get(j).index(vars, assignment)];
+				ret.nodes[k] = node(PRODUCT, kids.clone());
+			}
+			return ret;
+		}
+
+		Symbolic sumOut(Symbolic f, Variable var) {
+			List<Variable> vars = new ArrayList<Variable>(f.variables);
+			vars.remove(var);
+			Symbolic ret = new Symbolic(vars);
+			int[] assignment = new int[f.variables.size()];
+			int pos = f.variables.indexOf(var);
+			int[] kids = new int[var.domain.size()];
+			for (int k = 0; k < ret.nodes.length; k++) {
+				decode(k, vars, assignment, pos);
+				for (int j = 0; j < kids.length; j++) {
+					assignment[pos] = j;
+					kids[j] = f.nodes[f.index(f.variables, assignment)];
+				}
+				ret.nodes[k] = node(SUM, kids.clone());
+			}
+			return ret;
+		}
+
+		/**
+		 * The assignment of the variables at an index.
+		 */
+		void decode(int index, List<Variable> vars, int[] assignment) {
+			for (int i = vars.size() - 1; i >= 0; i--) {
+				int card = vars.get(i).domain.size();
+				assignment[i] = index % card;
+				index /= card;
+			}
+		}
+
+		/**
+		 * The assignment of the variables at an index into a longer
+		 * assignment, skipping one position.
+		 */
+		void decode(int index, List<Variable> vars, int[] assignment, int skip) {
+			for (int i = vars.size() - 1; i >= 0; i--) {
+				int card = vars.get(i).domain.size();
+				assignment[i < skip ? i : i + 1] = index % card;
+				index /= card;
+			}
+		}
+
+		int leaf(double p) {
+			types.add(LEAF);
+			edges.add(new int[0]);
+			values.add(p);
+			return types.size() - 1;
+		}
+
+		int constant(double p) {
+			Integer ret = constants.get(p);
+			if (ret == null)
+				constants.put(p, ret = leaf(p));
+			return ret;
+		}
+
+		/**
+		 * The node of a sum or product of children, simplified and shared
+		 * with an identical one if any.
+		 */
+		int node(byte t, int[] kids) {
+			int neutral = t == SUM ? zero : one;
+			int n = 0;
+			for (int k : kids) {
+				if (t == PRODUCT && k == zero)
+					return zero;
+				if (k != neutral)
+					kids[n++] = k;
+			}
+			if (n == 0)
+				return neutral;
+			if (n == 1)
+				return kids[0];
+			kids = Arrays.copyOf(kids, n);
+			Arrays.sort(kids);
+			Node key = new Node(t, kids);
+			Integer ret = unique.get(key);
+			if (ret == null) {
+				types.add(t);
+				edges.add(kids);
+				values.add(0.0);
+				unique.put(key, ret = types.size() - 1);
+			}
+			return ret;
+		}
+	}
+
+	private static class Node {
+		final byte type;
+		final int[] children;
+
+		Node(byte type, int[] children) {
+			this.type = type;
+			this.children = children;
+		}
+
+		public boolean equals(Object other) {
+			return other instanceof Node && ((Node) other).type == type
+					&& Arrays.equals(((Node) other).children, children);
+		}
+
+		public int hashCode() {
+			return 31 * Arrays.hashCode(children) + type;
+		}
+	}
+}
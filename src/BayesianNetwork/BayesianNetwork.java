@@ -1,10 +1,15 @@
 package BayesianNetwork;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * BayesianNetwork
@@ -26,6 +31,16 @@ public class BayesianNetwork implements Iterable<String> {
 	// the underlying map recording all variables.
 	public Map<String, Variable> nodes;
 
+	// incremented before and after each update, so it is odd during one
+	private volatile long version;
+	private List<WeakReference<NetworkListener>> listeners = new ArrayList<WeakReference<NetworkListener>>();
+
+	// for a derived network, the network whose variables it shares, the
+	// tables it overrides, and the listener following the base
+	private BayesianNetwork base;
+	private volatile Map<Variable, Variable.Family> overrides = Collections.emptyMap();
+	private NetworkListener baseListener;
+
 	/**
 	 * The constructor.
 	 */
@@ -58,6 +73,64 @@ public class BayesianNetwork implements Iterable<String> {
 	 *            a = False:0.7, a = unknown = 0.1]
 	 */
 	public void addNode(String name, String[] values, String[] parents, String[] probabilities) {
+		Variable var = createNode(name, values, parents);
+		try {
+			for (String p : probabilities)
+				var.addProbability(p);
+		} catch (ValidationError e) {
+			nodes.remove(name);
+			throw e;
+		}
+		connect(var);
+	}
+
+	/**
+	 * Add a node whose distribution is a noisy-MAX model, or noisy-OR if the
+	 * variable is binary. The values must be listed from the "absent" one
+	 * upwards, for example ["F", "T"] or ["none", "mild", "severe"].
+	 * 
+	 * @param parameters
+	 *            - string array of the effect of each parent outcome, like
+	 *            ["c = T, a = T : 0.8", "c = T, b = T : 0.6"], and optionally
+	 *            the leak, like ["c = T : 0.05"]. See NoisyMax.
+	 */
+	public void addNoisyMaxNode(String name, String[] values, String[] parents, String[] parameters) {
+		Variable var = createNode(name, values, parents);
+		try {
+			var.distribution = new NoisyMax(var, parameters);
+		} catch (RuntimeException e) {
+			nodes.remove(name);
+			throw e;
+		}
+		connect(var);
+	}
+
+	/**
+	 * Add a node whose distribution is a decision tree over its parents.
+	 * 
+	 * @param rules
+	 *            - string array in the format of probabilities in addNode, but
+	 *            only the parents relevant in the context need to be given,
+	 *            like ["c = T, a = T : 0.8", "c = T, a = F, b = T : 0.3"]. See
+	 *            TreeDistribution.
+	 */
+	public void addTreeNode(String name, String[] values, String[] parents, String[] rules) {
+		Variable var = createNode(name, values, parents);
+		try {
+			var.distribution = new TreeDistribution(var, rules);
+		} catch (RuntimeException e) {
+			nodes.remove(name);
+			throw e;
+		}
+		connect(var);
+	}
+
+	/**
+	 * Build parts shared by all kinds of node: the domain and the parents.
+	 */
+	private Variable createNode(String name, String[] values, String[] parents) {
+		if (base != null)
+			throw new ValidationError("The nodes of a derived network are shared with its base.");
 		Variable var = new Variable(this, name);
 		nodes.put(name, var);
 		try {
@@ -65,14 +138,336 @@ public class BayesianNetwork implements Iterable<String> {
 				var.addValue(v);
 			for (String p : parents)
 				var.addParent(p);
-			for (String p : probabilities)
-				var.addProbability(p);
-			for (Variable v : var.parents)
-				v.children.add(var);
 		} catch (ValidationError e) {
 			nodes.remove(name);
 			throw e;
 		}
+		return var;
+	}
+
+	/**
+	 * Register the node as a child of its parents once it is completely built.
+	 */
+	private void connect(Variable var) {
+		for (Variable v : var.parents)
+			v.children.add(var);
+		var.publish();
+	}
+
+	/**
+	 * Live updates
+	 * 
+	 * Tables, parent lists and the node map are never modified in place once
+	 * the network is built: an update builds the new ones and swaps them in,
+	 * so a reader holding the old ones keeps a consistent view. The parents
+	 * and the distribution of a variable are swapped in together as one
+	 * Variable.Family, so a reader of a single family, like a Gibbs step,
+	 * reads family(var) once. A reader needing several families from the
+	 * same version takes stableVersion() before reading them and retries if
+	 * version() changed meanwhile.
+	 * Listeners are notified once the update is complete.
+	 */
+	public long version() {
+		// a derived network is also being updated while its base is
+		return base == null ? version : version | (base.version() & 1);
+	}
+
+	/**
+	 * Wait for any update in progress to complete and return the version.
+	 */
+	public long stableVersion() {
+		long v;
+		while (((v = version()) & 1) != 0)
+			Thread.yield();
+		return v;
+	}
+
+	/**
+	 * Register a listener of updates. Only a weak reference is kept, so a
+	 * listener does not need to be removed to be garbage collected.
+	 */
+	public synchronized void addListener(NetworkListener listener) {
+		listeners.add(new WeakReference<NetworkListener>(listener));
+	}
+
+	public synchronized void removeListener(NetworkListener listener) {
+		for (Iterator<WeakReference<NetworkListener>> it = listeners.iterator(); it.hasNext();) {
+			NetworkListener l = it.next().get();
+			if (l == null || l == listener)
+				it.remove();
+		}
+	}
+
+	/**
+	 * Replace the distribution of a node by a probability table over its
+	 * current parents.
+	 * 
+	 * @param probabilities
+	 *            - in the format of addNode.
+	 * @return the new version of the network.
+	 */
+	public long setProbabilities(String name, String[] probabilities) {
+		Variable var = getNode(name);
+		return setProbabilities(var, var.table(var.parents, probabilities));
+	}
+
+	/**
+	 * Replace the distribution of a node by a probability table over its
+	 * current parents, which is not to be modified afterwards.
+	 */
+	public synchronized long setProbabilities(Variable var, Map<Condition, Double> table) {
+		version++;
+		if (base == null) {
+			var.probabilities = table;
+			var.distribution = null;
+			var.publish();
+		} else {
+			Map<Variable, Variable.Family> copy = new HashMap<Variable, Variable.Family>(overrides);
+			copy.put(var, new Variable.Family(base.family(var).parents, share(var, table), null));
+			overrides = copy;
+		}
+		version++;
+		notify(var, false);
+		return version;
+	}
+
+	/**
+	 * Add an arc from parent to child, replacing the distribution of the child
+	 * by a probability table over its new parents.
+	 * 
+	 * @return the new version of the network.
+	 */
+	public synchronized long addArc(String parent, String child, String[] probabilities) {
+		if (base != null)
+			throw new ValidationError("The structure of a derived network is shared with its base.");
+		Variable from = getNode(parent), to = getNode(child);
+		if (to.parents.contains(from))
+			throw new ValidationError("The arc " + parent + " -> " + child + " already exists.");
+		if (from == to || descendants(to).contains(from))
+			throw new ValidationError("The arc " + parent + " -> " + child + " would make a cycle.");
+
+		List<Variable> parents = new ArrayList<Variable>(to.parents);
+		parents.add(from);
+		List<Variable> children = new ArrayList<Variable>(from.children);
+		children.add(to);
+		return rewire(to, parents, from, children, to.table(parents, probabilities));
+	}
+
+	/**
+	 * Remove the arc from parent to child, replacing the distribution of the
+	 * child by a probability table over its remaining parents.
+	 * 
+	 * @return the new version of the network.
+	 */
+	public synchronized long removeArc(String parent, String child, String[] probabilities) {
+		if (base != null)
+			throw new ValidationError("The structure of a derived network is shared with its base.");
+		Variable from = getNode(parent), to = getNode(child);
+		if (!to.parents.contains(from))
+			throw new ValidationError("There is no arc " + parent + " -> " + child + ".");
+
+		List<Variable> parents = new ArrayList<Variable>(to.parents);
+		parents.remove(from);
+		List<Variable> children = new ArrayList<Variable>(from.children);
+		children.remove(to);
+		return rewire(to, parents, from, children, to.table(parents, probabilities));
+	}
+
+	/**
+	 * Structural sharing
+	 * 
+	 * A derived network shares the variables, structure and tables of its
+	 * base, and only holds the tables it overrides, so that many variants of
+	 * one network cost little more than their differences. Setting the
+	 * probabilities of a derived network overrides them there only, reusing
+	 * the conditions of the inherited table; adding nodes or arcs is not
+	 * allowed. Updates of the base show through wherever they are not
+	 * overridden, and are notified to the listeners of the derived network.
+	 * 
+	 * As the variables are shared, engines read the distributions through
+	 * probabilities(var), distribution(var) and getProbability(var, cond)
+	 * of the network they were given, rather than from the variables.
+	 */
+	public BayesianNetwork derive() {
+		final BayesianNetwork ret = new BayesianNetwork();
+		ret.base = this;
+		ret.nodes = nodes;
+		ret.baseListener = new NetworkListener() {
+			@Override
+			public void familyChanged(Variable variable, boolean structure) {
+				ret.baseChanged(variable, structure);
+			}
+		};
+		addListener(ret.baseListener);
+		return ret;
+	}
+
+	/**
+	 * The network this one was derived from, null if it owns its variables.
+	 */
+	public BayesianNetwork getBase() {
+		return base;
+	}
+
+	/**
+	 * The variables whose table is overridden in this network.
+	 */
+	public Set<Variable> overridden() {
+		return Collections.unmodifiableSet(overrides.keySet());
+	}
+
+	/**
+	 * The parents and distribution of a variable in this network, from the
+	 * same version. Callers combining the parents with the table read the
+	 * family once rather than the parents and the table separately.
+	 */
+	public Variable.Family family(Variable var) {
+		Variable.Family inherited = base == null ? var.family() : base.family(var);
+		Variable.Family override = overrides.get(var);
+		// an override only fits the parents it was set for
+		return override != null && override.parents == inherited.parents ? override : inherited;
+	}
+
+	/**
+	 * The probability table of a variable in this network, null if its
+	 * distribution is parametric.
+	 */
+	public Map<Condition, Double> probabilities(Variable var) {
+		return family(var).probabilities;
+	}
+
+	/**
+	 * The parametric distribution of a variable in this network, null if it
+	 * has a probability table.
+	 */
+	public Distribution distribution(Variable var) {
+		return family(var).distribution;
+	}
+
+	/**
+	 * Index the probability of a variable in this network by a condition
+	 * over the variable and its parents.
+	 */
+	public Double getProbability(Variable var, Condition cond) {
+		return family(var).probability(cond);
+	}
+
+	/**
+	 * Drop the table overridden in a derived network, going back to the one
+	 * of the base.
+	 * 
+	 * @return the new version of the network.
+	 */
+	public synchronized long revert(String name) {
+		Variable var = getNode(name);
+		if (!overrides.containsKey(var))
+			return version;
+		version++;
+		Map<Variable, Variable.Family> copy = new HashMap<Variable, Variable.Family>(overrides);
+		copy.remove(var);
+		overrides = copy;
+		version++;
+		notify(var, false);
+		return version;
+	}
+
+	/**
+	 * A table keyed by the conditions of the inherited one if it has the same,
+	 * so that overrides do not duplicate them.
+	 */
+	private Map<Condition, Double> share(Variable var, Map<Condition, Double> table) {
+		Map<Condition, Double> inherited = base.probabilities(var);
+		if (inherited == null || !inherited.keySet().equals(table.keySet()))
+			return table;
+		Map<Condition, Double> ret = new HashMap<Condition, Double>();
+		for (Condition c : inherited.keySet())
+			ret.put(c, table.get(c));
+		return ret;
+	}
+
+	/**
+	 * Follow an update of the base, unless the table is overridden. A change
+	 * of parents drops the override, which no longer fits.
+	 */
+	private synchronized void baseChanged(Variable var, boolean structure) {
+		if (!structure && overrides.containsKey(var))
+			return;
+		version++;
+		if (structure) {
+			nodes = base.nodes;
+			if (overrides.containsKey(var)) {
+				Map<Variable, Variable.Family> copy = new HashMap<Variable, Variable.Family>(overrides);
+				copy.remove(var);
+				overrides = copy;
+			}
+		}
+		version++;
+		notify(var, structure);
+	}
+
+	/**
+	 * Swap in the new parents of a node, children of the other end of the arc
+	 * and table, keeping the nodes in topological order.
+	 */
+	private long rewire(Variable var, List<Variable> parents, Variable other, List<Variable> children,
+			Map<Condition, Double> table) {
+		version++;
+		var.parents = parents;
+		var.probabilities = table;
+		var.distribution = null;
+		var.publish();
+		other.children = children;
+		if (!topological())
+			nodes = sort();
+		version++;
+		notify(var, true);
+		return version;
+	}
+
+	private void notify(Variable var, boolean structure) {
+		for (Iterator<WeakReference<NetworkListener>> it = listeners.iterator(); it.hasNext();) {
+			NetworkListener l = it.next().get();
+			if (l == null)
+				it.remove();
+			else
+				l.familyChanged(var, structure);
+		}
+	}
+
+	private Set<Variable> descendants(Variable var) {
+		Set<Variable> ret = new HashSet<Variable>();
+		List<Variable> todo = new ArrayList<Variable>(var.children);
+		while (!todo.isEmpty()) {
+			Variable v = todo.remove(todo.size() - 1);
+			if (ret.add(v))
+				todo.addAll(v.children);
+		}
+		return ret;
+	}
+
+	private boolean topological() {
+		Set<Variable> seen = new HashSet<Variable>();
+		for (Variable v : nodes.values()) {
+			if (!seen.containsAll(v.parents))
+				return false;
+			seen.add(v);
+		}
+		return true;
+	}
+
+	/**
+	 * A copy of the node map in topological order, keeping the current order
+	 * where possible.
+	 */
+	private Map<String, Variable> sort() {
+		Map<String, Variable> ret = new LinkedHashMap<String, Variable>();
+		while (ret.size() < nodes.size())
+			for (Variable v : nodes.values())
+				if (!ret.containsKey(v.name) && ret.values().containsAll(v.parents)) {
+					ret.put(v.name, v);
+					break;
+				}
+		return ret;
 	}
 
 	/**
@@ -129,7 +524,8 @@ public class BayesianNetwork implements Iterable<String> {
 	 * Query the conditional probability table of the given variable
 	 */
 	public double query(String name, String condition) {
-		return getNode(name).getProbability(condition);
+		Variable var = getNode(name);
+		return getProbability(var, var.parseCondition(condition));
 	}
 
 	@Override
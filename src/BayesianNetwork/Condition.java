@@ -71,6 +71,25 @@ public class Condition implements Iterable<Event> {
 		return false;
 	}
 
+	/**
+	 * Number of events.
+	 */
+	public int size() {
+		return events.length;
+	}
+
+	/**
+	 * Look up the value a variable takes in this condition.
+	 * @param var
+	 * @return the value, or null if the variable is not mentioned.
+	 */
+	public Value get(Variable var) {
+		for (Event e : events)
+			if (e.node == var)
+				return e.value;
+		return null;
+	}
+
 	public String toString() {
 		String ret = "[";
 		for (Event e : events)
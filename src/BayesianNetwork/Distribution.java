@@ -0,0 +1,20 @@
+package BayesianNetwork;
+
+/**
+ * Distribution interface
+ *
+ * A parametric conditional probability distribution of a variable given its
+ * parents. It replaces the probability table of a variable, so the
+ * probabilities are computed from a handful of parameters instead of being
+ * stored for every combination of parent outcomes.
+ */
+public interface Distribution {
+
+	/**
+	 * @param condition
+	 *            - an assignment of the variable and all of its parents, in
+	 *            the same form as the keys of a probability table.
+	 * @return P(variable = value | parents)
+	 */
+	public double probability(Condition condition);
+}
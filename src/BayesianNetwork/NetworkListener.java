@@ -0,0 +1,19 @@
+package BayesianNetwork;
+
+/**
+ * NetworkListener interface
+ *
+ * Notified after each update of a live network, so that anything compiled
+ * from it can be invalidated. Only the family of the changed variable (the
+ * variable and its parents) is affected.
+ */
+public interface NetworkListener {
+
+	/**
+	 * @param variable
+	 *            - the variable whose distribution was replaced.
+	 * @param structure
+	 *            - true if its parents changed as well.
+	 */
+	public void familyChanged(Variable variable, boolean structure);
+}
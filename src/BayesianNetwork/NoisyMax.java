@@ -0,0 +1,186 @@
+package BayesianNetwork;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * NoisyMax class
+ *
+ * The noisy-MAX (and its binary case noisy-OR) model of causal independence.
+ * Each parent independently pushes the variable towards a value, and the
+ * variable takes the largest of these values and of a leak, in the order the
+ * values are declared (the first value is the "absent" one).
+ *
+ * Only one distribution per parent outcome is stored, so the size of the
+ * model is linear in the number of parents:
+ *
+ *         P(Y <= y | X1..Xk) = leak(y) * PRODUCT_OVER: P(Yi <= y | Xi)
+ *
+ * Parameters are given as strings like "C = T, I = T : 0.8", meaning the
+ * parent I = T alone causes C = T with probability 0.8, or "C = T : 0.05" for
+ * the leak. Parent outcomes not mentioned have no effect on the variable.
+ */
+public class NoisyMax implements Distribution {
+	public final Variable variable;
+	public final List<Value> values;
+	// the parents the model was built for, which a change of arcs does not affect
+	public final List<Variable> parents;
+	// a hidden copy of the variable, used to decompose the model into factors
+	public final Variable auxiliary;
+	// hidden partial maxima of the causes, used to divorce the parents into a
+	// chain of non negative factors
+	public final List<Variable> partials;
+
+	// cumulative distributions, indexed as values
+	private double[] leak;
+	private List<Map<Value, double[]>> causes;
+
+	public NoisyMax(Variable variable, String[] parameters) {
+		this.variable = variable;
+		parents = variable.parents;
+		values = new ArrayList<Value>(variable.domain.values());
+		if (values.isEmpty())
+			throw new ValidationError("Variable <" + variable.name + "> has no value.");
+		auxiliary = new Variable(variable.name + "'");
+		for (Value v : values)
+			auxiliary.addValue(v.name);
+		partials = new ArrayList<Variable>();
+		for (int i = 1; i < parents.size(); i++) {
+			Variable partial = new Variable(variable.name + "'" + i);
+			for (Value v : values)
+				partial.addValue(v.name);
+			partials.add(partial);
+		}
+
+		causes = new ArrayList<Map<Value, double[]>>();
+		for (int i = 0; i < parents.size(); i++)
+			causes.add(new HashMap<Value, double[]>());
+		leak = null;
+
+		for (String line : parameters)
+			addParameter(line);
+
+		leak = cumulate(leak);
+		for (Map<Value, double[]> cause : causes)
+			for (Map.Entry<Value, double[]> ent : cause.entrySet())
+				ent.setValue(cumulate(ent.getValue()));
+	}
+
+	/**
+	 * @param line - e.g, "c = true, a = true : 0.8" or "c = true : 0.05"
+	 */
+	private void addParameter(String line) {
+		line = line.replaceAll("\\s+", "");
+		String[] desc = line.split(":");
+		if (desc.length != 2)
+			throw new ValidationError("Only one ':' in an description allowed.");
+		double probability = Double.parseDouble(desc[1]);
+		if (probability < 0.0 || probability > 1.0)
+			throw new ValidationError("Probability " + probability + " out of range.");
+
+		Event outcome = null;
+		Event cause = null;
+		for (String e : desc[0].split(",")) {
+			Event event = variable.parseEvent(e);
+			if (event.node == variable && outcome == null)
+				outcome = event;
+			else if (parents.contains(event.node) && cause == null)
+				cause = event;
+			else
+				throw new ValidationError("Expected one outcome of <" + variable.name
+						+ "> and at most one parent outcome, received " + line);
+		}
+		if (outcome == null)
+			throw new ValidationError("No outcome of <" + variable.name + "> given in " + line);
+
+		double[] dist;
+		if (cause == null) {
+			if (leak == null)
+				leak = unset();
+			dist = leak;
+		} else {
+			Map<Value, double[]> map = causes.get(parents.indexOf(cause.node));
+			if (!map.containsKey(cause.value))
+				map.put(cause.value, unset());
+			dist = map.get(cause.value);
+		}
+		dist[values.indexOf(outcome.value)] = probability;
+	}
+
+	private double[] unset() {
+		double[] dist = new double[values.size()];
+		for (int i = 0; i < dist.length; i++)
+			dist[i] = Double.NaN;
+		return dist;
+	}
+
+	/**
+	 * Turn a partially specified distribution into a cumulative one, the
+	 * "absent" value takes the remaining probability if it is not given.
+	 */
+	private double[] cumulate(double[] dist) {
+		double[] ret = new double[values.size()];
+		if (dist == null) {
+			for (int i = 0; i < ret.length; i++)
+				ret[i] = 1.0;
+			return ret;
+		}
+		double rest = 1.0;
+		for (int i = 1; i < dist.length; i++)
+			if (!Double.isNaN(dist[i]))
+				rest -= dist[i];
+		if (rest < -1e-9)
+			throw new ValidationError("Probabilities of <" + variable.name + "> sum over 1.");
+		double sum = 0.0;
+		for (int i = 0; i < dist.length; i++) {
+			if (Double.isNaN(dist[i]))
+				sum += i == 0 ? Math.max(rest, 0.0) : 0.0;
+			else
+				sum += dist[i];
+			ret[i] = Math.min(sum, 1.0);
+		}
+		return ret;
+	}
+
+	/**
+	 * The cumulative leak distribution, P(leak <= y) for each value y.
+	 */
+	public double[] leak() {
+		return leak;
+	}
+
+	/**
+	 * The cumulative distribution P(Yi <= y | Xi = value) caused by a parent,
+	 * null if the outcome of the parent has no effect.
+	 *
+	 * @param parent - index of the parent in the parent list of the variable.
+	 */
+	public double[] cumulative(int parent, Value value) {
+		return causes.get(parent).get(value);
+	}
+
+	/**
+	 * P(Y <= y | parents) where y is the index of the value.
+	 */
+	private double cumulative(int y, Condition condition) {
+		if (y < 0)
+			return 0.0;
+		double p = leak[y];
+		for (int i = 0; i < causes.size(); i++) {
+			double[] cdf = causes.get(i).get(condition.get(parents.get(i)));
+			if (cdf != null)
+				p *= cdf[y];
+		}
+		return p;
+	}
+
+	@Override
+	public double probability(Condition condition) {
+		int y = values.indexOf(condition.get(variable));
+		if (y < 0)
+			throw new ValidationError("Provided condition mismatch.");
+		return cumulative(y, condition) - cumulative(y - 1, condition);
+	}
+}
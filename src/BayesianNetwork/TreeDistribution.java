@@ -0,0 +1,177 @@
+package BayesianNetwork;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * TreeDistribution class
+ *
+ * A decision tree conditional distribution, where internal nodes test the
+ * outcome of a parent and leaves hold a distribution of the variable. Parents
+ * that do not matter in a context are not tested, so the tree is usually much
+ * smaller than the probability table.
+ *
+ * The tree is built from rules in the same format as the probability table,
+ * but only the parents relevant in a context need to be mentioned, for example
+ * "C = T, I = T : 0.8" applies to every outcome of the other parents. Rules
+ * must not overlap and values not given in a context have probability 0.
+ */
+public class TreeDistribution implements Distribution {
+	public final Variable variable;
+	public final Node root;
+
+	/**
+	 * A tree node, either a test on a parent with a branch for each of its
+	 * values, or a leaf with the distribution of the variable.
+	 */
+	public static class Node {
+		public final Variable test;
+		public final Map<Value, Node> branches;
+		public final Map<Value, Double> leaf;
+
+		Node(Variable test) {
+			this.test = test;
+			branches = new HashMap<Value, Node>();
+			leaf = null;
+		}
+
+		Node(Map<Value, Double> leaf) {
+			test = null;
+			branches = null;
+			this.leaf = leaf;
+		}
+
+		public boolean isLeaf() {
+			return test == null;
+		}
+	}
+
+	/**
+	 * A parsed rule, the context is the list of parent outcomes.
+	 */
+	private static class Rule {
+		List<Event> context;
+		Event outcome;
+		double probability;
+	}
+
+	public TreeDistribution(Variable variable, String[] rules) {
+		this.variable = variable;
+		List<Rule> parsed = new ArrayList<Rule>();
+		for (String line : rules)
+			parsed.add(parseRule(line));
+		root = build(parsed, 0);
+	}
+
+	/**
+	 * @param line - e.g, "c = true, a = true : 0.8"
+	 */
+	private Rule parseRule(String line) {
+		line = line.replaceAll("\\s+", "");
+		String[] desc = line.split(":");
+		if (desc.length != 2)
+			throw new ValidationError("Only one ':' in an description allowed.");
+
+		Rule rule = new Rule();
+		rule.context = new ArrayList<Event>();
+		rule.probability = Double.parseDouble(desc[1]);
+		for (String e : desc[0].split(",")) {
+			Event event = variable.parseEvent(e);
+			if (event.node == variable && rule.outcome == null)
+				rule.outcome = event;
+			else if (variable.parents.contains(event.node))
+				rule.context.add(event);
+			else
+				throw new ValidationError("<" + event.node.name + "> is not a parent of <" + variable.name + ">.");
+		}
+		if (rule.outcome == null)
+			throw new ValidationError("No outcome of <" + variable.name + "> given in " + line);
+		return rule;
+	}
+
+	private static Value valueOf(Rule rule, Variable var) {
+		for (Event e : rule.context)
+			if (e.node == var)
+				return e.value;
+		return null;
+	}
+
+	/**
+	 * Recursively split on the first parent (from index) some rule mentions.
+	 */
+	private Node build(List<Rule> rules, int index) {
+		for (int i = index; i < variable.parents.size(); i++) {
+			Variable parent = variable.parents.get(i);
+			boolean tested = false;
+			for (Rule r : rules)
+				tested |= valueOf(r, parent) != null;
+			if (!tested)
+				continue;
+
+			Node node = new Node(parent);
+			for (Value v : parent.domain.values()) {
+				List<Rule> branch = new ArrayList<Rule>();
+				for (Rule r : rules) {
+					Value rv = valueOf(r, parent);
+					if (rv == null || rv == v)
+						branch.add(r);
+				}
+				node.branches.put(v, build(branch, i + 1));
+			}
+			return node;
+		}
+
+		Map<Value, Double> leaf = new HashMap<Value, Double>();
+		for (Value v : variable.domain.values())
+			leaf.put(v, 0.0);
+		Set<Value> given = new HashSet<Value>();
+		for (Rule r : rules)
+			if (!given.add(r.outcome.value))
+				throw new ValidationError("Overlapping contexts for <" + r.outcome + ">.");
+			else
+				leaf.put(r.outcome.value, r.probability);
+		return new Node(leaf);
+	}
+
+	/**
+	 * The parents tested on some path of the tree consistent with the
+	 * evidence, the distribution does not depend on any other parent.
+	 */
+	public Set<Variable> scope(Condition evidence) {
+		Set<Variable> ret = new LinkedHashSet<Variable>();
+		collect(root, evidence, ret);
+		return ret;
+	}
+
+	private void collect(Node node, Condition evidence, Set<Variable> dest) {
+		if (node.isLeaf())
+			return;
+		Value observed = evidence.get(node.test);
+		if (observed != null) {
+			collect(node.branches.get(observed), evidence, dest);
+		} else {
+			dest.add(node.test);
+			for (Node n : node.branches.values())
+				collect(n, evidence, dest);
+		}
+	}
+
+	@Override
+	public double probability(Condition condition) {
+		Node node = root;
+		while (!node.isLeaf()) {
+			node = node.branches.get(condition.get(node.test));
+			if (node == null)
+				throw new ValidationError("Provided condition mismatch.");
+		}
+		Double p = node.leaf.get(condition.get(variable));
+		if (p == null)
+			throw new ValidationError("Provided condition mismatch.");
+		return p;
+	}
+}
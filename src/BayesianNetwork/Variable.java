@@ -2,6 +2,7 @@ package BayesianNetwork;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -22,14 +23,44 @@ public class Variable {
 	public List<Variable> children;
 	public Map<String, Value> domain;
 	public Map<Condition, Double> probabilities;
+	public Distribution distribution;
 	public BayesianNetwork network;
+	volatile Family family; // published by the network once built and on every update
+
+	/**
+	 * The parents and the distribution of a variable, published as a whole so
+	 * that a reader never sees the parents of one version with the table of
+	 * another.
+	 */
+	public static final class Family {
+		public final List<Variable> parents;
+		public final Map<Condition, Double> probabilities;
+		public final Distribution distribution;
+
+		Family(List<Variable> parents, Map<Condition, Double> probabilities, Distribution distribution) {
+			this.parents = parents;
+			this.probabilities = probabilities;
+			this.distribution = distribution;
+		}
+
+		/**
+		 * Index the probability by a condition over the variable and these
+		 * parents.
+		 */
+		public Double probability(Condition cond) {
+			if (distribution != null)
+				return distribution.probability(cond);
+			return probabilities.get(cond);
+		}
+	}
 
 	public Variable(String name) {
 		this.name = name;
 		parents = new ArrayList<Variable>();
 		children = new ArrayList<Variable>();
-		domain = new HashMap<String, Value>();
+		domain = new LinkedHashMap<String, Value>();
 		probabilities = null;
+		distribution = null;
 	}
 
 	public Variable(BayesianNetwork net, String name) {
@@ -64,11 +95,15 @@ public class Variable {
 	 * 
 	 */
 	public Condition parseCondition(String line) {
+		return parseCondition(line, parents.size());
+	}
+
+	private Condition parseCondition(String line, int nParents) {
 		line = line.replaceAll("\\s+", "");
 		String[] cond = line.split(",");
-		if (cond.length != parents.size() + 1)
+		if (cond.length != nParents + 1)
 			throw new ValidationError(
-					"Number of events (" + cond.length + ") mismatches required number (" + parents.size() + 1 + ").");
+					"Number of events (" + cond.length + ") mismatches required number (" + nParents + 1 + ").");
 
 		List<Event> conditionList = new ArrayList<Event>();
 		for (String event : cond) {
@@ -82,7 +117,34 @@ public class Variable {
 	 * Index the probability by a condition
 	 */
 	public Double getProbability(String cond) {
-		return probabilities.get(parseCondition(cond));
+		return getProbability(parseCondition(cond));
+	}
+
+	/**
+	 * Index the probability by a condition over this variable and its parents.
+	 * 
+	 * Parametric distributions are evaluated directly, otherwise the
+	 * probability table is looked up.
+	 */
+	public Double getProbability(Condition cond) {
+		return family().probability(cond);
+	}
+
+	/**
+	 * The current family of the variable, read once by callers needing the
+	 * parents and the distribution of the same version.
+	 */
+	public Family family() {
+		Family f = family;
+		// a variable used outside a network is never published
+		return f != null ? f : new Family(parents, probabilities, distribution);
+	}
+
+	/**
+	 * Publish the parents and distribution as they are now, in a single write.
+	 */
+	void publish() {
+		family = new Family(parents, probabilities, distribution);
 	}
 
 	/**
@@ -116,15 +178,34 @@ public class Variable {
 	 * @param line - e.g, "a = true, weather = sunny : 0.8"
 	 */
 	public void addProbability(String line) {
-		if (probabilities == null) {
-			probabilities = new HashMap<Condition, Double>();
+		if (probabilities == null)
+			probabilities = emptyTable(parents);
+		put(probabilities, parents, line);
+	}
+
+	/**
+	 * Build a new probability table given some parents, leaving the current
+	 * one untouched.
+	 * 
+	 * @param lines - in the format of addProbability.
+	 */
+	public Map<Condition, Double> table(List<Variable> parents, String[] lines) {
+		Map<Condition, Double> ret = emptyTable(parents);
+		for (String line : lines)
+			put(ret, parents, line);
+		return ret;
+	}
 
-			List<Variable> varList = new ArrayList<Variable>(parents);
-			varList.add(this);
+	private Map<Condition, Double> emptyTable(List<Variable> parents) {
+		Map<Condition, Double> ret = new HashMap<Condition, Double>();
+		List<Variable> varList = new ArrayList<Variable>(parents);
+		varList.add(this);
+		for (Condition c : allConditions(varList))
+			ret.put(c, 0.0);
+		return ret;
+	}
 
-			for (Condition c : allConditions(varList))
-				probabilities.put(c, 0.0);
-		}
+	private void put(Map<Condition, Double> table, List<Variable> parents, String line) {
 		line = line.replaceAll("\\s+", "");
 
 		String[] desc = line.split(":"); // where desc (description) is like
@@ -134,10 +215,10 @@ public class Variable {
 
 		Double probability = Double.parseDouble(desc[1]);
 
-		Condition condition = parseCondition(desc[0]);
+		Condition condition = parseCondition(desc[0], parents.size());
 
-		if (probabilities.containsKey(condition)) {
-			probabilities.put(condition, probability);
+		if (table.containsKey(condition)) {
+			table.put(condition, probability);
 		} else {
 			throw new ValidationError("Provided condition mismatch.");
 		}
@@ -0,0 +1,319 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import BayesianNetwork.*;
+
+/**
+ * Accuracy against cost of the approximate inference engines.
+ *
+ * Each engine answers a set of queries on a set of networks for increasing
+ * budgets (the number of samples, or of iterations), a few times each. The
+ * exact posterior of the target of every query is computed once by
+ * VariableElimination, and each answer is recorded with:
+ *  - the largest absolute error over the values of the target,
+ *  - the Kullback-Leibler divergence from the exact posterior, with the
+ *    estimates floored at 1e-12 so that a missed value stays finite,
+ *  - the Hellinger distance,
+ * against its wall clock time. The rows are written as CSV or JSON, to
+ * tune the budgets of a workload and catch accuracy regressions.
+ *
+ * Usage: java Benchmark results.csv [budget ...]
+ */
+public class Benchmark {
+
+	/**
+	 * Makes an engine with a budget.
+	 */
+	public interface Engine {
+		public Inference create(BayesianNetwork network, int budget);
+	}
+
+	/**
+	 * A query with its exact posterior.
+	 */
+	public static class Query {
+		public final String network;
+		public final Variable target;
+		public final String evidence;
+		public final double[] exact;
+
+		Query(String network, Variable target, String evidence, double[] exact) {
+			this.network = network;
+			this.target = target;
+			this.evidence = evidence;
+			this.exact = exact;
+		}
+
+		public String toString() {
+			return "P(" + target.name + " | " + evidence + ")";
+		}
+	}
+
+	/**
+	 * One answer of an engine.
+	 */
+	public static class Result {
+		public final String engine;
+		public final Query query;
+		public final int budget;
+		public final int repeat;
+		public final double time; // ms
+		public final double absoluteError;
+		public final double kl;
+		public final double hellinger;
+
+		Result(String engine, Query query, int budget, int repeat, double time, double[] estimate) {
+			this.engine = engine;
+			this.query = query;
+			this.budget = budget;
+			this.repeat = repeat;
+			this.time = time;
+			double abs = 0.0, kl = 0.0, h = 0.0, total = 0.0;
+			for (double q : estimate)
+				total += q;
+			for (int k = 0; k < estimate.length; k++) {
+				double p = query.exact[k], q = total > 0 ? estimate[k] / total : 0.0;
+				abs = Math.max(abs, Math.abs(estimate[k] - p));
+				if (p > 0)
+					kl += p * Math.log(p / Math.max(q, 1e-12));
+				h += (Math.sqrt(p) - Math.sqrt(q)) * (Math.sqrt(p) - Math.sqrt(q));
+			}
+			absoluteError = abs;
+			this.kl = kl;
+			hellinger = Math.sqrt(h / 2);
+		}
+	}
+
+	Map<String, Engine> engines = new LinkedHashMap<String, Engine>();
+	Map<String, BayesianNetwork> networks = new HashMap<String, BayesianNetwork>();
+	List<Query> queries = new ArrayList<Query>();
+
+	/**
+	 * Register an engine under a name.
+	 */
+	public void addEngine(String name, Engine engine) {
+		engines.put(name, engine);
+	}
+
+	/**
+	 * Register the approximate engines of this package: the number of
+	 * samples of MarkovChainMonteCarlo and BlockedGibbs (blocks of 4), and
+	 * the number of iterations of LoopyBeliefPropagation.
+	 */
+	public void addDefaultEngines() {
+		addEngine("MCMC", new Engine() {
+			public Inference create(BayesianNetwork network, int budget) {
+				return new MarkovChainMonteCarlo(network, budget);
+			}
+		});
+		addEngine("BlockedGibbs", new Engine() {
+			public Inference create(BayesianNetwork network, int budget) {
+				return new BlockedGibbs(network, budget, 4);
+			}
+		});
+		addEngine("LBP", new Engine() {
+			public Inference create(BayesianNetwork network, int budget) {
+				LoopyBeliefPropagation bp = new LoopyBeliefPropagation(network);
+				bp.setLimits(budget, 1e-9);
+				return bp;
+			}
+		});
+	}
+
+	/**
+	 * Add a query, computing its exact posterior.
+	 *
+	 * @param query
+	 *            - a target and evidence like "M | C = T, S = F".
+	 */
+	public void addQuery(String name, BayesianNetwork network, String query) {
+		String[] q = query.split("\\|");
+		Variable target = network.getNode(q[0].trim());
+		String evidence = q.length > 1 ? q[1].trim() : "";
+		Factor f = new VariableElimination(network).eliminate(target, network.parseCondition(evidence));
+		f.normalise();
+		double[] exact = new double[target.domain.size()];
+		int k = 0;
+		for (Value v : target.domain.values())
+			exact[k++] = f.get(new Condition(new ArrayList<Event>(Arrays.asList(new Event(target, v)))));
+		networks.put(name, network);
+		queries.add(new Query(name, target, evidence, exact));
+	}
+
+	/**
+	 * Add random queries with nEvidence observed variables, whose values are
+	 * sampled from the network so that the evidence is possible.
+	 */
+	public void addRandomQueries(String name, BayesianNetwork network, int count, int nEvidence, long seed) {
+		Random r = new Random(seed);
+		List<Variable> variables = new ArrayList<Variable>(network.nodes.values());
+		for (int i = 0; i < count; i++) {
+			Map<Variable, Value> state = sample(network, variables, r);
+			List<Variable> shuffled = new ArrayList<Variable>(variables);
+			Collections.shuffle(shuffled, r);
+			List<String> events = new ArrayList<String>();
+			for (Variable v : shuffled.subList(1, Math.min(nEvidence + 1, shuffled.size())))
+				events.add(v.name + " = " + state.get(v).name);
+			addQuery(name, network, shuffled.get(0).name + " | " + common.join(", ", events));
+		}
+	}
+
+	/**
+	 * Run every engine on every query, for each budget, the given number of
+	 * times.
+	 */
+	public List<Result> run(int[] budgets, int repeats) {
+		List<Result> ret = new ArrayList<Result>();
+		for (Map.Entry<String, Engine> e : engines.entrySet())
+			for (Query q : queries)
+				for (int budget : budgets)
+					for (int i = 0; i < repeats; i++) {
+						Inference engine = e.getValue().create(networks.get(q.network), budget);
+						double[] estimate = new double[q.exact.length];
+						long start = System.nanoTime();
+						int k = 0;
+						for (Value v : q.target.domain.values())
+							estimate[k++] = Double.parseDouble(
+									engine.ask(q.target.name + " = " + v.name + " | " + q.evidence + " "));
+						double time = (System.nanoTime() - start) / 1e6;
+						ret.add(new Result(e.getKey(), q, budget, i, time, estimate));
+					}
+		return ret;
+	}
+
+	/**
+	 * Write the results, one line per answer after a header.
+	 */
+	public static void writeCsv(List<Result> results, PrintWriter out) {
+		out.println("network,engine,query,budget,repeat,time_ms,absolute_error,kl,hellinger");
+		for (Result r : results)
+			out.println(String.format(Locale.ROOT, "%s,%s,\"%s\",%d,%d,%.3f,%.6g,%.6g,%.6g", r.query.network,
+					r.engine, r.query, r.budget, r.repeat, r.time, r.absoluteError, r.kl, r.hellinger));
+	}
+
+	/**
+	 * Write the results as a JSON array of objects with the fields of the
+	 * CSV form.
+	 */
+	public static void writeJson(List<Result> results, PrintWriter out) {
+		out.println("[");
+		for (int i = 0; i < results.size(); i++) {
+			Result r = results.get(i);
+			out.print(String.format(Locale.ROOT,
+					"  {\"network\": %s, \"engine\": %s, \"query\": %s, \"budget\": %d, \"repeat\": %d, "
+							+ "\"time_ms\": %.3f, \"absolute_error\": %.6g, \"kl\": %.6g, \"hellinger\": %.6g}",
+					quote(r.query.network), quote(r.engine), quote(r.query.toString()), r.budget, r.repeat, r.time,
+					r.absoluteError, r.kl, r.hellinger));
+			out.println(i + 1 < results.size() ? "," : "");
+		}
+		out.println("]");
+	}
+
+	private static String quote(String s) {
+		return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	/**
+	 * A random network of binary variables, each with up to maxParents
+	 * parents among the previous ones, and tables drawn from a flat
+	 * Dirichlet distribution.
+	 */
+	public static BayesianNetwork generate(int nVariables, int maxParents, long seed) {
+		Random r = new Random(seed);
+		BayesianNetwork net = new BayesianNetwork();
+		for (int i = 0; i < nVariables; i++) {
+			List<String> parents = new ArrayList<String>();
+			int nParents = Math.min(i, r.nextInt(maxParents + 1));
+			while (parents.size() < nParents) {
+				String p = "X" + r.nextInt(i);
+				if (!parents.contains(p))
+					parents.add(p);
+			}
+			String name = "X" + i;
+			net.addNode(name, new String[] { "T", "F" }, parents.toArray(new String[0]), new String[0]);
+
+			Variable v = net.getNode(name);
+			Map<Condition, Double> table = new HashMap<Condition, Double>();
+			for (Condition c : Variable.allConditions(v.parents)) {
+				double t = -Math.log(1 - r.nextDouble()), f = -Math.log(1 - r.nextDouble());
+				for (Value x : v.domain.values()) {
+					List<Event> events = new ArrayList<Event>();
+					for (Event e : c)
+						events.add(e);
+					events.add(new Event(v, x));
+					table.put(new Condition(events), (x.name.equals("T") ? t : f) / (t + f));
+				}
+			}
+			net.setProbabilities(v, table);
+		}
+		return net;
+	}
+
+	/**
+	 * Forward sample every variable in topological order.
+	 */
+	private static Map<Variable, Value> sample(BayesianNetwork network, List<Variable> variables, Random r) {
+		Map<Variable, Value> state = new HashMap<Variable, Value>();
+		for (Variable v : variables) {
+			double u = r.nextDouble();
+			Value last = null;
+			for (Value x : v.domain.values()) {
+				List<Event> events = new ArrayList<Event>();
+				events.add(new Event(v, x));
+				for (Variable p : v.parents)
+					events.add(new Event(p, state.get(p)));
+				u -= network.getProbability(v, new Condition(events));
+				last = x;
+				if (u < 0)
+					break;
+			}
+			state.put(v, last);
+		}
+		return state;
+	}
+
+	/**
+	 * Benchmark the default engines on the network of Main and two
+	 * generated ones, writing CSV or JSON after the extension of the file.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0)
+			throw new RuntimeException("Usage: java Benchmark results.csv|results.json [budget ...]");
+		int[] budgets = { 100, 1000, 10000 };
+		if (args.length > 1) {
+			budgets = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++)
+				budgets[i - 1] = Integer.parseInt(args[i]);
+		}
+
+		Benchmark b = new Benchmark();
+		b.addDefaultEngines();
+		BayesianNetwork standard = Main.getNetwork();
+		for (String q : new String[] { "M | C = T", "M | C = T, S = F", "I | B = T", "S | " })
+			b.addQuery("standard", standard, q);
+		b.addRandomQueries("random20", generate(20, 3, 1), 10, 3, 1);
+		b.addRandomQueries("random50", generate(50, 3, 2), 10, 5, 2);
+
+		List<Result> results = b.run(budgets, 3);
+		PrintWriter out = new PrintWriter(new FileWriter(new File(args[0])));
+		try {
+			if (args[0].endsWith(".json"))
+				writeJson(results, out);
+			else
+				writeCsv(results, out);
+		} finally {
+			out.close();
+		}
+	}
+}
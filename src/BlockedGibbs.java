@@ -0,0 +1,300 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import BayesianNetwork.*;
+
+/**
+ * Blocked Gibbs sampling with Rao-Blackwellised estimates.
+ *
+ * Resampling one variable at a time barely moves on strongly coupled or near
+ * deterministic variables. Here the unobserved variables are grouped into
+ * small blocks, joining first the ends of the arcs along which the child
+ * depends the most on the parent, and each step samples a whole block
+ * jointly from its exact distribution given all other variables. This
+ * distribution is computed by eliminating locally: the factors of the block
+ * variables and of their children, reduced by the current values of
+ * everything else.
+ *
+ * Instead of counting how often the target takes the queried value, each
+ * sweep adds the probability of that value under the distribution of its
+ * block, which has a lower variance for the same number of sweeps.
+ *
+ * Queries are in the same format as VariableElimination, and the number of
+ * samples is the number of sweeps over all blocks. The arcs ranked by
+ * coupling are kept until the network is updated, so that only the merge,
+ * which depends on the evidence, is made again for each query.
+ */
+public class BlockedGibbs implements Inference {
+
+	BayesianNetwork network;
+	int nSamples;
+	int blockSize;
+	Random r = new Random();
+	InferenceListener listener;
+
+	List<Variable[]> arcs; // by decreasing coupling
+	long arcsVersion = -1; // the network version they were ranked at
+
+	/**
+	 * @param blockSize
+	 *            - the largest number of variables sampled jointly.
+	 */
+	public BlockedGibbs(BayesianNetwork network, int nSamples, int blockSize) {
+		this.network = network;
+		this.nSamples = nSamples;
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Collect the statistics of every query for the listener, null to stop.
+	 */
+	public void setListener(InferenceListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @param query
+	 *            - a String in the format "A = a1 | B = b2, C = c1", the
+	 *            spacing is not important.
+	 * @return - the result value in string.
+	 */
+	@Override
+	public String ask(String query) {
+		QueryStatistics stats = listener == null ? null : new QueryStatistics("Blocked Gibbs", query);
+		long time = stats == null ? 0 : System.nanoTime();
+		String[] q = query.split("\\|");
+		Event target = network.parseEvent(q[0]);
+		Condition evidence = network.parseCondition(q.length > 1 ? q[1] : "");
+		if (stats != null)
+			time = VariableElimination.phase(stats, 0, time);
+
+		Value observed = evidence.get(target.node);
+		double probability;
+		if (observed != null) {
+			probability = observed == target.value ? 1.0 : 0.0;
+			if (stats != null)
+				VariableElimination.phase(stats, 2, time);
+		} else {
+			List<List<Variable>> blocks = blocks(evidence);
+			Map<Variable, Value> state = initialState(evidence);
+			if (stats != null)
+				time = VariableElimination.phase(stats, 1, time);
+
+			double sum = 0.0;
+			for (int i = 0; i < nSamples; i++) {
+				for (List<Variable> block : blocks) {
+					Factor conditional = conditional(block, state);
+					Condition sample = sample(conditional);
+					for (Event e : sample)
+						state.put(e.node, e.value);
+					if (block.contains(target.node))
+						sum += probability(conditional, target);
+				}
+			}
+			probability = nSamples == 0 ? 0.0 : sum / nSamples;
+			if (stats != null) {
+				VariableElimination.phase(stats, 2, time);
+				stats.samples = nSamples;
+				stats.samplesPerSecond = nSamples * 1e9 / Math.max(stats.computeTime, 1);
+			}
+		}
+		if (stats != null)
+			listener.queryCompleted(stats);
+		return String.format("%.6f", probability);
+	}
+
+	/**
+	 * Group the unobserved variables into blocks of at most blockSize
+	 * variables, merging the blocks at both ends of the most coupled arcs
+	 * first.
+	 */
+	List<List<Variable>> blocks(Condition evidence) {
+		Map<Variable, List<Variable>> block = new LinkedHashMap<Variable, List<Variable>>();
+		for (Variable v : network.nodes.values())
+			if (!evidence.mention(v))
+				block.put(v, new ArrayList<Variable>(Arrays.asList(v)));
+
+		for (Variable[] arc : arcs()) {
+			List<Variable> a = block.get(arc[0]), b = block.get(arc[1]);
+			if (a == null || b == null || a == b || a.size() + b.size() > blockSize)
+				continue;
+			a.addAll(b);
+			for (Variable v : b)
+				block.put(v, a);
+		}
+
+		List<List<Variable>> ret = new ArrayList<List<Variable>>();
+		Set<List<Variable>> seen = Collections.newSetFromMap(new IdentityHashMap<List<Variable>, Boolean>());
+		for (List<Variable> b : block.values())
+			if (seen.add(b))
+				ret.add(b);
+		return ret;
+	}
+
+	/**
+	 * The arcs of the network by decreasing coupling, ranked again only once
+	 * the network is updated. The arcs into a parametric distribution are
+	 * left out rather than tabulated, so a noisy-MAX child is never merged
+	 * with its parents.
+	 */
+	synchronized List<Variable[]> arcs() {
+		long v;
+		while ((v = network.stableVersion()) != arcsVersion) {
+			final Map<Variable[], Double> strength = new HashMap<Variable[], Double>();
+			List<Variable[]> ranked = new ArrayList<Variable[]>();
+			for (Variable child : network.nodes.values()) {
+				Variable.Family family = network.family(child);
+				if (family.distribution != null)
+					continue;
+				for (Variable parent : family.parents) {
+					Variable[] arc = { parent, child };
+					strength.put(arc, coupling(network, parent, child));
+					ranked.add(arc);
+				}
+			}
+			Collections.sort(ranked, new Comparator<Variable[]>() {
+				public int compare(Variable[] a, Variable[] b) {
+					return Double.compare(strength.get(b), strength.get(a));
+				}
+			});
+			arcs = ranked;
+			// kept only if no update happened while ranking
+			arcsVersion = network.version() == v ? v : -1;
+		}
+		return arcs;
+	}
+
+	/**
+	 * How much a child depends on a parent: the largest change of the
+	 * probability of a child value when only the parent value changes.
+	 */
+	static double coupling(BayesianNetwork network, Variable parent, Variable child) {
+		Variable.Family f = network.family(child);
+		List<Variable> family = new ArrayList<Variable>(f.parents);
+		family.add(child);
+		double ret = 0.0;
+		for (Condition c : Variable.allConditions(family)) {
+			double p = f.probability(c);
+			for (Value other : parent.domain.values()) {
+				if (other == c.get(parent))
+					continue;
+				List<Event> events = new ArrayList<Event>();
+				for (Event e : c)
+					events.add(e.node == parent ? new Event(parent, other) : e);
+				ret = Math.max(ret, Math.abs(p - f.probability(new Condition(events))));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Sample the variables in topological order from their parents, with the
+	 * evidence fixed, so that the chain starts from a likely state.
+	 */
+	private Map<Variable, Value> initialState(Condition evidence) {
+		Map<Variable, Value> state = new HashMap<Variable, Value>();
+		for (Variable v : network.nodes.values()) {
+			Value observed = evidence.get(v);
+			if (observed != null) {
+				state.put(v, observed);
+				continue;
+			}
+			Variable.Family family = network.family(v);
+			List<Value> values = new ArrayList<Value>(v.domain.values());
+			double[] p = new double[values.size()];
+			for (int k = 0; k < p.length; k++) {
+				List<Event> events = new ArrayList<Event>();
+				events.add(new Event(v, values.get(k)));
+				for (Variable parent : family.parents)
+					events.add(new Event(parent, state.get(parent)));
+				p[k] = family.probability(new Condition(events));
+			}
+			state.put(v, values.get(draw(p)));
+		}
+		return state;
+	}
+
+	/**
+	 * The normalised joint distribution of a block given the current values
+	 * of all other variables.
+	 */
+	Factor conditional(List<Variable> block, Map<Variable, Value> state) {
+		List<Event> rest = new ArrayList<Event>();
+		for (Map.Entry<Variable, Value> e : state.entrySet())
+			if (!block.contains(e.getKey()))
+				rest.add(new Event(e.getKey(), e.getValue()));
+		Condition others = new Condition(rest);
+
+		// The factors mentioning the block: its own and its children's.
+		Set<Variable> touched = new HashSet<Variable>(block);
+		for (Variable v : block)
+			touched.addAll(v.children);
+		List<Factor> factors = new ArrayList<Factor>();
+		for (Variable v : touched)
+			factors.addAll(Factor.factorsOf(network, v, others));
+
+		// Only hidden variables of decomposed distributions are left to sum.
+		Set<Variable> hidden = new HashSet<Variable>();
+		for (Factor f : factors)
+			hidden.addAll(f.variables);
+		hidden.removeAll(block);
+		List<Factor> remaining = VariableElimination.sumOut(factors,
+				VariableElimination.plan(VariableElimination.scopes(factors), hidden));
+		Factor joint = VariableElimination.product(remaining);
+		double total = 0.0;
+		for (double p : joint.p.values())
+			total += p;
+		if (total > 0)
+			joint.normalise();
+		else
+			for (Condition c : new ArrayList<Condition>(joint.p.keySet()))
+				// no state is possible given the others, move anywhere
+				joint.p.put(c, 1.0 / joint.p.size());
+		return joint;
+	}
+
+	/**
+	 * Draw an assignment of the block from its distribution.
+	 */
+	private Condition sample(Factor conditional) {
+		List<Condition> keys = new ArrayList<Condition>(conditional.p.keySet());
+		double[] p = new double[keys.size()];
+		for (int k = 0; k < p.length; k++)
+			p[k] = conditional.p.get(keys.get(k));
+		return keys.get(draw(p));
+	}
+
+	private int draw(double[] p) {
+		double total = 0.0;
+		for (double x : p)
+			total += x;
+		double u = r.nextDouble() * total;
+		for (int k = 0; k < p.length; k++) {
+			u -= p[k];
+			if (u < 0)
+				return k;
+		}
+		return r.nextInt(p.length);
+	}
+
+	/**
+	 * The probability of an event under the distribution of a block.
+	 */
+	private static double probability(Factor conditional, Event event) {
+		double ret = 0.0;
+		for (Map.Entry<Condition, Double> e : conditional.p.entrySet())
+			if (e.getKey().contains(event))
+				ret += e.getValue();
+		return ret;
+	}
+}
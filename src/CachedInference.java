@@ -0,0 +1,356 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import BayesianNetwork.*;
+
+/**
+ * A caching front for any inference engine, for traffic where the same
+ * queries come again and again, often at the same moment.
+ *
+ * Queries are parsed, so that the spacing and the order of the evidence do
+ * not matter, and the posterior of the whole target variable is cached: a
+ * miss on "A = a1 | B = b2" also answers "A = a2 | B = b2". The cache is
+ * split into shards, each a small LRU map under its own lock, bounded in
+ * size and in the age of its entries. Entries computed under an older
+ * version of the network are never returned.
+ *
+ * Concurrent misses on the same query under the same version of the network
+ * are coalesced: the first caller computes the posterior, the others wait
+ * for its result. A caller arriving after an update starts its own.
+ *
+ * The engine is called from many threads at once, so it must be safe to
+ * share, except for an ArithmeticCircuit, of which each miss takes its own
+ * copy. It must answer with a single probability, otherwise the query fails
+ * with a ValidationError.
+ *
+ * For example:
+ *         CachedInference cached = new CachedInference(net, new VariableElimination(net), 10000, 60, TimeUnit.SECONDS);
+ *         cached.register("ve");
+ *         cached.ask("M = T | C = T");
+ */
+public class CachedInference implements Inference, CachedInferenceMXBean {
+
+	static final int SHARDS = 16;
+
+	BayesianNetwork network;
+	Inference engine;
+	long ttl;
+	Shard[] shards;
+	ConcurrentHashMap<Pending, FutureTask<double[]>> inFlight = new ConcurrentHashMap<Pending, FutureTask<double[]>>();
+
+	AtomicLong hits = new AtomicLong();
+	AtomicLong misses = new AtomicLong();
+	AtomicLong coalesced = new AtomicLong();
+	AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * A target variable and evidence.
+	 */
+	static class Key {
+		final Variable target;
+		final Condition evidence;
+
+		Key(Variable target, Condition evidence) {
+			this.target = target;
+			this.evidence = evidence;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key))
+				return false;
+			Key k = (Key) other;
+			return k.target == target && k.evidence.equals(evidence);
+		}
+
+		@Override
+		public int hashCode() {
+			return target.hashCode() * 31 + evidence.hashCode();
+		}
+	}
+
+	/**
+	 * A query being computed, from the version of the network it started at.
+	 */
+	static class Pending {
+		final Key key;
+		final long version;
+
+		Pending(Key key, long version) {
+			this.key = key;
+			this.version = version;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Pending))
+				return false;
+			Pending p = (Pending) other;
+			return p.version == version && p.key.equals(key);
+		}
+
+		@Override
+		public int hashCode() {
+			return key.hashCode() * 31 + (int) (version ^ (version >>> 32));
+		}
+	}
+
+	static class Cached {
+		final double[] posterior;
+		final long version;
+		final long expires;
+
+		Cached(double[] posterior, long version, long expires) {
+			this.posterior = posterior;
+			this.version = version;
+			this.expires = expires;
+		}
+	}
+
+	class Shard extends LinkedHashMap<Key, Cached> {
+		private static final long serialVersionUID = 1L;
+		final int capacity;
+
+		Shard(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+			if (size() <= capacity)
+				return false;
+			evictions.incrementAndGet();
+			return true;
+		}
+	}
+
+	/**
+	 * @param maxEntries
+	 *            - the most posteriors kept, split evenly between shards.
+	 * @param ttl
+	 *            - how long a posterior is kept after being computed.
+	 */
+	public CachedInference(BayesianNetwork network, Inference engine, int maxEntries, long ttl, TimeUnit unit) {
+		this.network = network;
+		this.engine = engine;
+		this.ttl = unit.toNanos(ttl);
+		shards = new Shard[SHARDS];
+		for (int i = 0; i < SHARDS; i++)
+			shards[i] = new Shard(Math.max(1, (maxEntries + SHARDS - 1) / SHARDS));
+	}
+
+	/**
+	 * Register on the platform MBean server under
+	 * "BayesianNetwork:type=CachedInference,name=..."
+	 */
+	public void register(String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("BayesianNetwork:type=CachedInference,name=" + ObjectName.quote(name)));
+		} catch (JMException e) {
+			throw new RuntimeException("Cannot register cache metrics <" + name + ">.", e);
+		}
+	}
+
+	/**
+	 * @param query
+	 *            - a String in the format "A = a1 | B = b2, C = c1", the
+	 *            spacing is not important.
+	 * @return - the result value in string.
+	 */
+	@Override
+	public String ask(String query) {
+		String[] q = query.split("\\|");
+		Event target = network.parseEvent(q[0]);
+		Condition evidence = network.parseCondition(q.length > 1 ? q[1] : "");
+
+		Value observed = evidence.get(target.node);
+		if (observed != null)
+			return String.format("%.6f", observed == target.value ? 1.0 : 0.0);
+
+		double[] posterior = posterior(target.node, evidence);
+		return String.format("%.6f", posterior[new ArrayList<Value>(target.node.domain.values()).indexOf(target.value)]);
+	}
+
+	/**
+	 * The posterior of a variable given evidence, by value in domain order,
+	 * from the cache if possible. The array must not be modified.
+	 */
+	public double[] posterior(final Variable target, final Condition evidence) {
+		Key key = new Key(target, evidence);
+		Shard shard = shards[(key.hashCode() & 0x7fffffff) % SHARDS];
+		long now = System.nanoTime();
+		synchronized (shard) {
+			Cached e = shard.get(key);
+			if (e != null && e.version == network.version() && e.expires - now > 0) {
+				hits.incrementAndGet();
+				return e.posterior;
+			}
+		}
+
+		FutureTask<double[]> task = new FutureTask<double[]>(new Callable<double[]>() {
+			public double[] call() {
+				return compute(target, evidence);
+			}
+		});
+		// only join a computation started from the current version
+		long version = network.stableVersion();
+		Pending pending = new Pending(key, version);
+		FutureTask<double[]> running = inFlight.putIfAbsent(pending, task);
+		if (running != null)
+			coalesced.incrementAndGet();
+		else {
+			misses.incrementAndGet();
+			running = task;
+			try {
+				task.run();
+				double[] posterior = task.get();
+				// only cache what no update overlapped
+				if (network.version() == version)
+					synchronized (shard) {
+						shard.put(key, new Cached(posterior, version, System.nanoTime() + ttl));
+					}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				// rethrown below by the waiting path
+			} finally {
+				inFlight.remove(pending, task);
+			}
+		}
+
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Ask the engine for every value of the target. VariableElimination and
+	 * ArithmeticCircuit compute the whole posterior at once, the circuit on a
+	 * copy since its buffers cannot be shared between threads.
+	 */
+	private double[] compute(Variable target, Condition evidence) {
+		List<Value> values = new ArrayList<Value>(target.domain.values());
+		double[] ret = new double[values.size()];
+		if (engine instanceof VariableElimination) {
+			Factor f = ((VariableElimination) engine).eliminate(target, evidence);
+			f.normalise();
+			for (int k = 0; k < ret.length; k++)
+				ret[k] = f.get(new Condition(new ArrayList<Event>(Arrays.asList(new Event(target, values.get(k))))));
+			return ret;
+		}
+		if (engine instanceof ArithmeticCircuit)
+			return ((ArithmeticCircuit) engine).copy().posterior(target, evidence);
+
+		List<String> events = new ArrayList<String>();
+		for (Event e : evidence)
+			events.add(e.toString());
+		String observed = common.join(", ", events);
+		for (int k = 0; k < ret.length; k++) {
+			String answer = engine.ask(target.name + " = " + values.get(k).name + " | " + observed + " ");
+			try {
+				ret[k] = Double.parseDouble(answer);
+			} catch (NumberFormatException e) {
+				throw new ValidationError("The engine answered \"" + answer + "\" instead of a probability.");
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Remove every cached posterior.
+	 */
+	public void invalidateAll() {
+		for (Shard shard : shards)
+			synchronized (shard) {
+				shard.clear();
+			}
+	}
+
+	/**
+	 * Remove the expired and outdated posteriors, which are otherwise only
+	 * replaced when asked again or evicted.
+	 */
+	public void purge() {
+		long now = System.nanoTime(), version = network.version();
+		for (Shard shard : shards)
+			synchronized (shard) {
+				for (Iterator<Cached> it = shard.values().iterator(); it.hasNext();) {
+					Cached e = it.next();
+					if (e.version != version || e.expires - now <= 0)
+						it.remove();
+				}
+			}
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public double getHitRate() {
+		long h = hits.get(), total = h + misses.get() + coalesced.get();
+		return total == 0 ? 0.0 : (double) h / total;
+	}
+
+	@Override
+	public double getCoalescingRate() {
+		long c = coalesced.get(), total = c + misses.get();
+		return total == 0 ? 0.0 : (double) c / total;
+	}
+
+	@Override
+	public int getSize() {
+		int ret = 0;
+		for (Shard shard : shards)
+			synchronized (shard) {
+				ret += shard.size();
+			}
+		return ret;
+	}
+
+	@Override
+	public void reset() {
+		for (AtomicLong a : new AtomicLong[] { hits, misses, coalesced, evictions })
+			a.set(0);
+	}
+}
@@ -0,0 +1,31 @@
+
+/**
+ * Management interface of the cache statistics, see CachedInference.
+ */
+public interface CachedInferenceMXBean {
+
+	public long getHits();
+
+	public long getMisses();
+
+	/**
+	 * Misses that waited for the same query computed by another caller.
+	 */
+	public long getCoalesced();
+
+	public long getEvictions();
+
+	/**
+	 * Hits over all queries.
+	 */
+	public double getHitRate();
+
+	/**
+	 * Coalesced misses over all misses.
+	 */
+	public double getCoalescingRate();
+
+	public int getSize();
+
+	public void reset();
+}
@@ -0,0 +1,281 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import BayesianNetwork.*;
+
+/**
+ * Exact inference by cutset conditioning, in memory linear in the network
+ * when its treewidth is too high for the factors of VariableElimination.
+ *
+ * A loop cutset is chosen greedily on the factor graph of the query: the
+ * variables and factors with at most one neighbour are peeled off, and while
+ * a loop remains the variable in the most remaining factors is conditioned
+ * on. Once the cutset is observed, what is left is a forest eliminated in
+ * time and memory linear in its factors. For each instantiation c of the
+ * cutset,
+ *       P(target, e) = SUM_OVER c: P(target, c, e)
+ * so the unnormalised results of the instantiations are summed.
+ *
+ * With a memory limit, conditioning stops as soon as the largest factor of
+ * the remainder fits the limit, trading memory for fewer instantiations.
+ *
+ * The instantiations are independent: their range is split in halves by
+ * fork/join tasks, so that idle threads steal the remaining ranges. The pool
+ * only lives for the query.
+ */
+public class CutsetConditioning implements Inference {
+
+	BayesianNetwork network;
+	long memoryLimit;
+	int nThreads;
+
+	/**
+	 * Condition on a full loop cutset, using all processors.
+	 */
+	public CutsetConditioning(BayesianNetwork network) {
+		this(network, 0, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param memoryLimit
+	 *            - the largest number of entries of a factor of the
+	 *            remainder, 0 to condition until it is a forest.
+	 * @param nThreads
+	 *            - the number of threads enumerating the instantiations.
+	 */
+	public CutsetConditioning(BayesianNetwork network, long memoryLimit, int nThreads) {
+		this.network = network;
+		this.memoryLimit = memoryLimit;
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * @param query
+	 *            - a String in the format "A = a1 | B = b2, C = c1", the
+	 *            spacing is not important.
+	 * @return - the result value in string.
+	 */
+	@Override
+	public String ask(String query) {
+		String[] q = query.split("\\|");
+		Event target = network.parseEvent(q[0]);
+		Condition evidence = network.parseCondition(q.length > 1 ? q[1] : "");
+
+		Value observed = evidence.get(target.node);
+		if (observed != null)
+			return String.format("%.6f", observed == target.value ? 1.0 : 0.0);
+
+		Factor result = eliminate(target.node, evidence);
+		result.normalise();
+		return String.format("%.6f", result.p.get(new Condition(Arrays.asList(target))));
+	}
+
+	/**
+	 * The cutset conditioned on to answer a query.
+	 */
+	public List<Variable> cutset(Variable target, Condition evidence) {
+		List<Factor> factors = new VariableElimination(network).factors(evidence, Arrays.asList(target));
+		return cutset(VariableElimination.scopes(factors), target);
+	}
+
+	/**
+	 * The unnormalised factor of the target given evidence, summed over the
+	 * instantiations of the cutset.
+	 */
+	public Factor eliminate(Variable target, Condition evidence) {
+		List<Factor> factors = new VariableElimination(network).factors(evidence, Arrays.asList(target));
+		List<Set<Variable>> scopes = VariableElimination.scopes(factors);
+		List<Variable> cutset = cutset(scopes, target);
+
+		// The remainder has the same scopes for every instantiation.
+		Set<Variable> hidden = new LinkedHashSet<Variable>();
+		for (Set<Variable> scope : scopes) {
+			scope.removeAll(cutset);
+			hidden.addAll(scope);
+		}
+		hidden.remove(target);
+		List<Variable> order = VariableElimination.plan(scopes, hidden);
+
+		long count = VariableElimination.size(cutset);
+		if (count == Long.MAX_VALUE)
+			throw new RuntimeException("Too many instantiations of the cutset " + cutset + ".");
+		Instantiations task = new Instantiations(factors, cutset, order, target, 0, count,
+				Math.max(1, count / (8 * nThreads)));
+		// one pool per query, as the other parallel engines, so that no
+		// worker outlives the query
+		ForkJoinPool pool = new ForkJoinPool(nThreads);
+		double[] sum;
+		try {
+			sum = pool.invoke(task);
+		} finally {
+			pool.shutdown();
+		}
+
+		List<Value> values = new ArrayList<Value>(target.domain.values());
+		Factor ret = Factor.indicator(target, values.get(0));
+		for (int k = 0; k < sum.length; k++)
+			ret.p.put(new Condition(Arrays.asList(new Event(target, values.get(k)))), sum[k]);
+		return ret;
+	}
+
+	/**
+	 * Greedily choose a loop cutset of the factor graph given by the scopes,
+	 * never conditioning on the target.
+	 */
+	List<Variable> cutset(List<Set<Variable>> scopes, Variable target) {
+		List<Variable> ret = new ArrayList<Variable>();
+		List<Set<Variable>> remaining = copy(scopes);
+		while (memoryLimit <= 0 || largest(scopes, ret, target) > memoryLimit) {
+			peel(remaining);
+			if (remaining.isEmpty())
+				break;
+
+			Variable next = null;
+			int best = -1;
+			Set<Variable> candidates = new LinkedHashSet<Variable>();
+			for (Set<Variable> scope : remaining)
+				candidates.addAll(scope);
+			candidates.remove(target);
+			for (Variable v : candidates) {
+				int degree = 0;
+				for (Set<Variable> scope : remaining)
+					if (scope.contains(v))
+						degree++;
+				// the most loops cut, for the fewest instantiations
+				if (degree > best || degree == best && v.domain.size() < next.domain.size()) {
+					best = degree;
+					next = v;
+				}
+			}
+			ret.add(next);
+			for (Set<Variable> scope : remaining)
+				scope.remove(next);
+		}
+		return ret;
+	}
+
+	/**
+	 * Remove the leaves of the factor graph until only loops remain: the
+	 * variables in a single factor and the factors on a single variable.
+	 */
+	static void peel(List<Set<Variable>> scopes) {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			Set<Variable> seen = new HashSet<Variable>(), shared = new HashSet<Variable>();
+			for (Set<Variable> scope : scopes)
+				for (Variable v : scope)
+					if (!seen.add(v))
+						shared.add(v);
+			for (Iterator<Set<Variable>> it = scopes.iterator(); it.hasNext();) {
+				Set<Variable> scope = it.next();
+				changed |= scope.retainAll(shared);
+				if (scope.size() <= 1) {
+					it.remove();
+					changed = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Size of the largest factor of the remainder once the cutset is
+	 * observed.
+	 */
+	static long largest(List<Set<Variable>> scopes, List<Variable> cutset, Variable target) {
+		List<Set<Variable>> remainder = copy(scopes);
+		Set<Variable> hidden = new LinkedHashSet<Variable>();
+		long largest = 1;
+		for (Set<Variable> scope : remainder) {
+			scope.removeAll(cutset);
+			hidden.addAll(scope);
+			largest = Math.max(largest, VariableElimination.size(scope));
+		}
+		hidden.remove(target);
+		List<Variable> order = VariableElimination.plan(copy(remainder), hidden);
+		for (Variable v : order)
+			largest = Math.max(largest, VariableElimination.size(VariableElimination.eliminate(v, remainder)));
+		return largest;
+	}
+
+	private static List<Set<Variable>> copy(List<Set<Variable>> scopes) {
+		List<Set<Variable>> ret = new ArrayList<Set<Variable>>();
+		for (Set<Variable> scope : scopes)
+			ret.add(new HashSet<Variable>(scope));
+		return ret;
+	}
+
+	/**
+	 * Sum the target factor over a range of instantiations, numbered with
+	 * the last cutset variable as the least significant digit.
+	 */
+	static class Instantiations extends RecursiveTask<double[]> {
+		private static final long serialVersionUID = 1L;
+
+		final List<Factor> factors;
+		final List<Variable> cutset;
+		final List<Variable> order;
+		final Variable target;
+		final long from, to, grain;
+
+		Instantiations(List<Factor> factors, List<Variable> cutset, List<Variable> order, Variable target,
+				long from, long to, long grain) {
+			this.factors = factors;
+			this.cutset = cutset;
+			this.order = order;
+			this.target = target;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected double[] compute() {
+			if (to - from > grain) {
+				long middle = from + (to - from) / 2;
+				Instantiations left = new Instantiations(factors, cutset, order, target, from, middle, grain);
+				Instantiations right = new Instantiations(factors, cutset, order, target, middle, to, grain);
+				left.fork();
+				double[] ret = right.compute();
+				double[] other = left.join();
+				for (int k = 0; k < ret.length; k++)
+					ret[k] += other[k];
+				return ret;
+			}
+
+			List<Value> values = new ArrayList<Value>(target.domain.values());
+			double[] ret = new double[values.size()];
+			for (long i = from; i < to; i++) {
+				Condition c = instantiation(i);
+				List<Factor> reduced = new ArrayList<Factor>();
+				for (Factor f : factors)
+					reduced.add(Collections.disjoint(f.variables, cutset) ? f : f.restrict(c));
+				Factor result = VariableElimination.eliminate(reduced, order);
+				for (int k = 0; k < ret.length; k++) {
+					Double p = result.p.get(new Condition(Arrays.asList(new Event(target, values.get(k)))));
+					ret[k] += p == null ? 0.0 : p;
+				}
+			}
+			return ret;
+		}
+
+		private Condition instantiation(long i) {
+			List<Event> events = new ArrayList<Event>();
+			for (int j = cutset.size() - 1; j >= 0; j--) {
+				Variable v = cutset.get(j);
+				List<Value> values = new ArrayList<Value>(v.domain.values());
+				events.add(new Event(v, values.get((int) (i % values.size()))));
+				i /= values.size();
+			}
+			return new Condition(events);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import BayesianNetwork.*;
+
+/**
+ * A two-slice dynamic Bayesian network, modelling a process observed over
+ * time without unrolling it.
+ *
+ * The prior network gives the variables of the first time slice. The
+ * transition network gives the same variables in any later slice, with
+ * parents in the same slice or in the previous one, named after the
+ * variable with the suffix "-1":
+ *
+ *       dbn.addPriorNode("Rain", new String[] { "T", "F" }, new String[0], ...);
+ *       dbn.addTransitionNode("Rain", new String[] { "T", "F" },
+ *                             new String[] { "Rain-1" }, ...);
+ *
+ * The previous slice variables are added to the transition network as roots
+ * with a uniform distribution, which the filters replace by their belief.
+ * See ForwardFilter and ParticleFilter.
+ */
+public class DynamicBayesianNetwork {
+
+	public static final String PREVIOUS = "-1";
+
+	public final BayesianNetwork prior = new BayesianNetwork();
+	public final BayesianNetwork transition = new BayesianNetwork();
+
+	/**
+	 * Add a variable of the first slice, as in BayesianNetwork.addNode.
+	 */
+	public void addPriorNode(String name, String[] values, String[] parents, String[] probabilities) {
+		prior.addNode(name, values, parents, probabilities);
+	}
+
+	/**
+	 * Add a variable of a later slice, as in BayesianNetwork.addNode, whose
+	 * parents may be variables of the previous slice like "Rain-1". The
+	 * variable must already be in the prior network.
+	 */
+	public void addTransitionNode(String name, String[] values, String[] parents, String[] probabilities) {
+		for (String p : parents)
+			if (p.endsWith(PREVIOUS) && !transition.hasNode(p)) {
+				String current = p.substring(0, p.length() - PREVIOUS.length());
+				if (!prior.hasNode(current))
+					throw new ValidationError("No prior node <" + current + "> for the parent <" + p + ">.");
+				String[] domain = prior.getNode(current).domain.keySet().toArray(new String[0]);
+				String[] uniform = new String[domain.length];
+				for (int i = 0; i < domain.length; i++)
+					uniform[i] = p + " = " + domain[i] + " : " + 1.0 / domain.length;
+				transition.addNode(p, domain, new String[0], uniform);
+			}
+		transition.addNode(name, values, parents, probabilities);
+	}
+
+	/**
+	 * The names of the variables of a slice, in the order of the prior
+	 * network.
+	 */
+	public List<String> slice() {
+		return new ArrayList<String>(prior.nodes.keySet());
+	}
+
+	/**
+	 * The forward interface: the variables of a slice with children in the
+	 * next one. Given their values, the next slices are independent of the
+	 * past.
+	 */
+	public List<String> interfaceNodes() {
+		List<String> ret = new ArrayList<String>();
+		for (String name : slice())
+			if (transition.hasNode(name + PREVIOUS))
+				ret.add(name);
+		return ret;
+	}
+
+	/**
+	 * Check that every variable of the prior network has a transition with
+	 * the same values in the same order.
+	 */
+	public void validate() {
+		for (Variable v : prior.nodes.values()) {
+			if (!transition.hasNode(v.name))
+				throw new ValidationError("No transition for the variable <" + v.name + ">.");
+			List<String> values = new ArrayList<String>(transition.getNode(v.name).domain.keySet());
+			if (!values.equals(new ArrayList<String>(v.domain.keySet())))
+				throw new ValidationError("The values of <" + v.name + "> differ between the slices.");
+		}
+		for (String name : transition)
+			if (!name.endsWith(PREVIOUS) && !prior.hasNode(name))
+				throw new ValidationError("No prior node for the variable <" + name + ">.");
+	}
+
+	/**
+	 * Parse the observations of one slice into the index of the observed
+	 * value of each variable, in the order of slice(), RecordReader.MISSING
+	 * for the unobserved ones.
+	 *
+	 * @param line
+	 *            - e.g. "Umbrella = T, Wet = F"
+	 */
+	public int[] parseObservation(String line) {
+		List<String> slice = slice();
+		int[] ret = new int[slice.size()];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = RecordReader.MISSING;
+		for (Event e : prior.parseCondition(line))
+			ret[slice.indexOf(e.node.name)] = new ArrayList<Value>(e.node.domain.values()).indexOf(e.value);
+		return ret;
+	}
+}
@@ -0,0 +1,91 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import BayesianNetwork.*;
+
+/**
+ * A stateful session over a network where evidence is added, changed or
+ * retracted one observation at a time, as in interactive diagnosis.
+ *
+ * The session keeps its own junction tree, whose cached messages are only
+ * recomputed when they depend on an observation that changed, so each update
+ * costs the messages flowing away from the clique of the changed variable
+ * rather than a full inference.
+ *
+ * Sessions are not meant to be shared between threads.
+ */
+public class EvidenceSession {
+
+	BayesianNetwork network;
+	JunctionTree tree;
+	Map<Variable, Value> observed;
+
+	public EvidenceSession(BayesianNetwork network) {
+		this.network = network;
+		tree = new JunctionTree(network);
+		observed = new LinkedHashMap<Variable, Value>();
+	}
+
+	/**
+	 * Add or change the observation of a variable.
+	 * 
+	 * @param event
+	 *            - a String like "A = a1".
+	 */
+	public void observe(String event) {
+		Event e = network.parseEvent(event);
+		observed.put(e.node, e.value);
+	}
+
+	/**
+	 * Remove the observation of a variable, if any.
+	 */
+	public void retract(String name) {
+		observed.remove(network.getNode(name));
+	}
+
+	/**
+	 * Remove every observation.
+	 */
+	public void clear() {
+		observed.clear();
+	}
+
+	/**
+	 * The current evidence.
+	 */
+	public Condition evidence() {
+		List<Event> events = new ArrayList<Event>();
+		for (Map.Entry<Variable, Value> e : observed.entrySet())
+			events.add(new Event(e.getKey(), e.getValue()));
+		return new Condition(events);
+	}
+
+	/**
+	 * The posterior probability of an event given the current evidence.
+	 * 
+	 * @param event
+	 *            - a String like "A = a1".
+	 */
+	public double probability(String event) {
+		Event e = network.parseEvent(event);
+		Factor f = tree.marginal(e.node, evidence());
+		return f.p.get(new Condition(new ArrayList<Event>(Arrays.asList(e))));
+	}
+
+	/**
+	 * The posterior distribution of a variable given the current evidence, by
+	 * value name in domain order.
+	 */
+	public Map<String, Double> posterior(String name) {
+		Variable var = network.getNode(name);
+		Factor f = tree.marginal(var, evidence());
+		Map<String, Double> ret = new LinkedHashMap<String, Double>();
+		for (Value v : var.domain.values())
+			ret.put(v.name, f.p.get(new Condition(new ArrayList<Event>(Arrays.asList(new Event(var, v))))));
+		return ret;
+	}
+}
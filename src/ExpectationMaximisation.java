@@ -0,0 +1,440 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import BayesianNetwork.*;
+
+/**
+ * Expectation-Maximisation learning of the probability tables of a network
+ * with a fixed structure, from a dataset with missing values.
+ *
+ * The dataset is read once and compressed into its distinct records with
+ * their number of occurrences. Each iteration then
+ *  - E-step: computes, for every family with a missing variable, the expected
+ *    counts of its configurations. The network is compiled once into an
+ *    ArithmeticCircuit, whatever the missing values, and every record costs
+ *    one upward and one downward pass fed with its evidence indicators: the
+ *    expected count of a table entry is the entry times the derivative of
+ *    P(record) with respect to it, over P(record). The records are split
+ *    evenly between threads, each with its own copy of the circuit and
+ *    summing expected counts in its own arrays.
+ *  - M-step: merges the expected counts and swaps in the normalised tables as
+ *    the ParameterLearner does. Variables with a parametric distribution are
+ *    left untouched and get no counts.
+ *
+ * Iterations stop when the relative improvement of the log-likelihood falls
+ * under the tolerance. If a checkpoint file is set, the tables are written to
+ * it after every iteration, and can be loaded back to resume.
+ */
+public class ExpectationMaximisation {
+
+	BayesianNetwork network;
+	ParameterLearner learner;
+	ArithmeticCircuit circuit; // compiled on the first iteration
+	int[] position; // index in variables of each variable of the circuit
+	int[] circuitIndex; // index in the circuit of each variable
+	List<Variable> variables;
+	Map<Variable, Integer> variableIndex;
+	List<List<Value>> values;
+	List<Map<Value, Integer>> valueIndex;
+	int nThreads;
+	File checkpoint;
+
+	// distinct records and their counts
+	Map<Record, long[]> records;
+	double logLikelihood;
+	int iteration;
+
+	public ExpectationMaximisation(BayesianNetwork network, double prior, int nThreads) {
+		this.network = network;
+		this.nThreads = Math.max(1, nThreads);
+		learner = new ParameterLearner(network, prior, nThreads);
+		variables = learner.variables;
+		variableIndex = new HashMap<Variable, Integer>();
+		values = new ArrayList<List<Value>>();
+		valueIndex = new ArrayList<Map<Value, Integer>>();
+		for (Variable v : variables) {
+			variableIndex.put(v, variableIndex.size());
+			values.add(new ArrayList<Value>(v.domain.values()));
+			Map<Value, Integer> index = new HashMap<Value, Integer>();
+			for (Value value : v.domain.values())
+				index.put(value, index.size());
+			valueIndex.add(index);
+		}
+		records = new HashMap<Record, long[]>();
+		logLikelihood = Double.NEGATIVE_INFINITY;
+		iteration = 0;
+	}
+
+	public ExpectationMaximisation(BayesianNetwork network, double prior) {
+		this(network, prior, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Write the tables to this file after every iteration.
+	 */
+	public void setCheckpoint(File checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	public double getLogLikelihood() {
+		return logLikelihood;
+	}
+
+	public int getIteration() {
+		return iteration;
+	}
+
+	/**
+	 * Load the records of a CSV file, see RecordReader.
+	 */
+	public void loadCsv(File file) throws IOException {
+		List<Collector> collectors = collectors();
+		new RecordReader(network).readCsv(file, collectors);
+		collect(collectors);
+	}
+
+	/**
+	 * Load the records of a binary file, see RecordReader.
+	 */
+	public void loadBinary(File file) throws IOException {
+		List<Collector> collectors = collectors();
+		new RecordReader(network).readBinary(file, collectors);
+		collect(collectors);
+	}
+
+	/**
+	 * Add a record, with RecordReader.MISSING for unobserved variables.
+	 */
+	public void add(int[] record) {
+		Collector c = new Collector();
+		c.add(record);
+		collect(Arrays.asList(c));
+	}
+
+	/**
+	 * Run EM until the relative improvement of the log-likelihood is below the
+	 * tolerance or the number of iterations is reached.
+	 *
+	 * @return the number of iterations run.
+	 */
+	public int learn(int maxIterations, double tolerance) throws IOException {
+		initialise();
+		int n = 0;
+		while (n < maxIterations) {
+			double previous = logLikelihood;
+			iterate();
+			n++;
+			if (checkpoint != null)
+				save(checkpoint);
+			if (Math.abs(logLikelihood - previous) <= tolerance * Math.abs(logLikelihood))
+				break;
+		}
+		return n;
+	}
+
+	/**
+	 * Give random tables to the variables that have none, the uniform
+	 * distribution being a saddle point of the likelihood.
+	 */
+	private void initialise() {
+		Random r = new Random(0);
+		for (Variable v : variables) {
+			if (network.distribution(v) != null || network.probabilities(v) != null)
+				continue;
+			List<Variable> family = new ArrayList<Variable>(v.parents);
+			family.add(v);
+			List<Condition> conditions = Variable.allConditions(family);
+			int card = v.domain.size();
+			Map<Condition, Double> table = new HashMap<Condition, Double>();
+			for (int row = 0; row < conditions.size(); row += card) {
+				double[] p = new double[card];
+				double sum = 0.0;
+				for (int k = 0; k < card; k++)
+					sum += p[k] = 1.0 + r.nextDouble();
+				for (int k = 0; k < card; k++)
+					table.put(conditions.get(row + k), p[k] / sum);
+			}
+			network.setProbabilities(v, table);
+		}
+	}
+
+	/**
+	 * One E-step and M-step over all the records.
+	 */
+	void iterate() throws IOException {
+		if (circuit == null)
+			compile();
+		else
+			refresh();
+
+		final Record[] all = records.keySet().toArray(new Record[0]);
+		List<Callable<Expectation>> tasks = new ArrayList<Callable<Expectation>>();
+		for (int i = 0; i < nThreads; i++)
+			tasks.add(new Expectation(all, (int) ((long) all.length * i / nThreads),
+					(int) ((long) all.length * (i + 1) / nThreads)));
+
+		Expectation total = null;
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			for (Future<Expectation> f : pool.invokeAll(tasks)) {
+				Expectation e = f.get();
+				if (total == null)
+					total = e;
+				else
+					total.merge(e);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+
+		learner.update(total.counts);
+		logLikelihood = total.logLikelihood;
+		iteration++;
+	}
+
+	/**
+	 * Compile the circuit of the network, which does not depend on the
+	 * records.
+	 */
+	private void compile() {
+		circuit = new ArithmeticCircuit(network);
+		List<Variable> order = circuit.variables();
+		position = new int[order.size()];
+		circuitIndex = new int[variables.size()];
+		for (int j = 0; j < position.length; j++) {
+			position[j] = variableIndex.get(order.get(j));
+			circuitIndex[position[j]] = j;
+		}
+	}
+
+	/**
+	 * Copy the tables updated by the last M-step into the parameters of the
+	 * circuit.
+	 */
+	private void refresh() {
+		for (int i = 0; i < variables.size(); i++) {
+			if (!learner.learnt[i])
+				continue;
+			Variable v = variables.get(i);
+			List<Variable> family = new ArrayList<Variable>(v.parents);
+			family.add(v);
+			Map<Condition, Double> table = network.probabilities(v);
+			List<Condition> conditions = Variable.allConditions(family);
+			for (int row = 0; row < conditions.size(); row++)
+				circuit.setParameter(circuitIndex[i], row, table.get(conditions.get(row)));
+		}
+	}
+
+	/**
+	 * A record used as a map key.
+	 */
+	static class Record {
+		final int[] values;
+		final int hash;
+
+		Record(int[] values) {
+			this.values = values;
+			hash = Arrays.hashCode(values);
+		}
+
+		public boolean equals(Object other) {
+			return other instanceof Record && Arrays.equals(values, ((Record) other).values);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Counts the distinct records read by one thread.
+	 */
+	class Collector implements RecordReader.Sink {
+		Map<Record, long[]> counts = new HashMap<Record, long[]>();
+
+		@Override
+		public void add(int[] record) {
+			Record key = new Record(record);
+			long[] count = counts.get(key);
+			if (count == null)
+				counts.put(new Record(record.clone()), count = new long[1]);
+			count[0]++;
+		}
+	}
+
+	private List<Collector> collectors() {
+		List<Collector> ret = new ArrayList<Collector>();
+		for (int i = 0; i < nThreads; i++)
+			ret.add(new Collector());
+		return ret;
+	}
+
+	private void collect(List<Collector> collectors) {
+		for (Collector c : collectors) {
+			for (Map.Entry<Record, long[]> ent : c.counts.entrySet()) {
+				boolean observed = false;
+				for (int value : ent.getKey().values)
+					observed |= value != RecordReader.MISSING;
+				if (!observed)
+					continue;
+
+				long[] count = records.get(ent.getKey());
+				if (count == null)
+					records.put(ent.getKey(), ent.getValue());
+				else
+					count[0] += ent.getValue()[0];
+			}
+		}
+	}
+
+	/**
+	 * Expected counts and log-likelihood of the records assigned to a thread,
+	 * from its own copy of the circuit. The counts of the tables not learnt
+	 * are null.
+	 */
+	class Expectation implements Callable<Expectation> {
+		Record[] records;
+		int from, to;
+		ArithmeticCircuit circuit;
+		int[] evidence;
+		double[][] counts;
+		double logLikelihood;
+
+		Expectation(Record[] records, int from, int to) {
+			this.records = records;
+			this.from = from;
+			this.to = to;
+			circuit = ExpectationMaximisation.this.circuit.copy();
+			evidence = new int[position.length];
+			counts = new double[variables.size()][];
+			for (int i = 0; i < counts.length; i++)
+				if (learner.learnt[i])
+					counts[i] = new double[learner.tableSize(i)];
+		}
+
+		@Override
+		public Expectation call() {
+			for (int i = from; i < to; i++)
+				expect(records[i].values, ExpectationMaximisation.this.records.get(records[i])[0]);
+			return this;
+		}
+
+		private void expect(int[] record, double weight) {
+			for (int j = 0; j < evidence.length; j++)
+				evidence[j] = record[position[j]];
+			double likelihood = circuit.evaluate(evidence);
+			if (likelihood <= 0)
+				return; // impossible under the current tables, no information
+			logLikelihood += weight * Math.log(likelihood);
+
+			boolean differentiated = false;
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] == null)
+					continue;
+				int index = learner.familyIndex(i, record);
+				if (index != RecordReader.MISSING) {
+					counts[i][index] += weight;
+					continue;
+				}
+				if (!differentiated) {
+					circuit.differentiate();
+					differentiated = true;
+				}
+				int j = circuitIndex[i];
+				for (int row = 0; row < counts[i].length; row++) {
+					double expected = circuit.getParameter(j, row) * circuit.parameterDerivative(j, row);
+					if (expected > 0)
+						counts[i][row] += weight * expected / likelihood;
+				}
+			}
+		}
+
+		void merge(Expectation other) {
+			for (int i = 0; i < counts.length; i++)
+				if (counts[i] != null)
+					for (int j = 0; j < counts[i].length; j++)
+						counts[i][j] += other.counts[i][j];
+			logLikelihood += other.logLikelihood;
+		}
+	}
+
+	/**
+	 * Write the tables of the network, one entry per line in the format of
+	 * addNode prefixed by the variable name, e.g. "C\tC = T, I = T, B = F: 0.8".
+	 * The file is replaced atomically so a crash never leaves half a
+	 * checkpoint.
+	 */
+	public void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		PrintWriter out = new PrintWriter(new FileWriter(tmp));
+		try {
+			out.println("# iteration " + iteration + " log-likelihood " + logLikelihood);
+			for (Variable v : variables) {
+				if (network.distribution(v) != null || network.probabilities(v) == null)
+					continue;
+				for (Map.Entry<Condition, Double> ent : network.probabilities(v).entrySet()) {
+					List<String> events = new ArrayList<String>();
+					for (Event e : ent.getKey())
+						events.add(e.toString());
+					out.println(v.name + "\t" + common.join(", ", events) + ": " + ent.getValue());
+				}
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Load the tables written by save, to resume learning.
+	 */
+	public void resume(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			Map<String, Map<Condition, Double>> tables = new HashMap<String, Map<Condition, Double>>();
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("#")) {
+					String[] header = line.split("\\s+");
+					iteration = Integer.parseInt(header[2]);
+					logLikelihood = Double.parseDouble(header[4]);
+					continue;
+				}
+				String[] entry = line.split("\t");
+				Variable v = network.getNode(entry[0]);
+				String[] desc = entry[1].split(":");
+				if (!tables.containsKey(v.name))
+					tables.put(v.name, new HashMap<Condition, Double>());
+				tables.get(v.name).put(v.parseCondition(desc[0]), Double.parseDouble(desc[1].trim()));
+			}
+			for (Map.Entry<String, Map<Condition, Double>> ent : tables.entrySet())
+				network.setProbabilities(network.getNode(ent.getKey()), ent.getValue());
+		} finally {
+			in.close();
+		}
+	}
+}
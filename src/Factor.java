@@ -1,8 +1,10 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import BayesianNetwork.*;
 
@@ -25,11 +27,328 @@ public class Factor {
 	 * improve performance (so factors are kept small as their product grow
 	 * exponentially in size).
 	 */
-	public Factor(Variable v, Condition evidence) {
-		variables = new ArrayList<Variable>(v.parents);
+	private Factor(Variable v, List<Variable> parents, Map<Condition, Double> table, Condition evidence) {
+		variables = new ArrayList<Variable>(parents);
 		variables.add(v);
-		p = new HashMap<Condition, Double>(v.probabilities);
+		p = new HashMap<Condition, Double>(table);
+		observe(evidence);
+	}
+
+	private Factor(List<Variable> v, Map<Condition, Double> p) {
+		variables = v;
+		this.p = p;
+	}
+
+	/**
+	 * Make the factors of a variable given evidence, with its distribution in
+	 * the given network, which may override the one of the variable.
+	 * 
+	 * A variable with a probability table gives a single factor. Parametric
+	 * distributions are never expanded to the full table: a noisy-MAX
+	 * variable is decomposed into one small factor per parent, and a tree
+	 * distribution only spans the parents it still tests under the evidence.
+	 */
+	public static List<Factor> factorsOf(BayesianNetwork network, Variable v, Condition evidence) {
+		Variable.Family family = network.family(v);
+		Distribution dist = family.distribution;
+		List<Factor> ret = new ArrayList<Factor>();
+		if (dist instanceof NoisyMax)
+			decompose((NoisyMax) dist, evidence, ret);
+		else if (dist instanceof TreeDistribution)
+			ret.add(reduce((TreeDistribution) dist, family.parents, evidence));
+		else if (dist != null)
+			ret.add(tabulate(v, dist, family.parents, family.parents, evidence));
+		else
+			ret.add(new Factor(v, family.parents, family.probabilities, evidence));
+		return ret;
+	}
+
+	/**
+	 * The factors of a variable given evidence, as factorsOf but with no
+	 * negative entry, for the algorithms bounding or passing messages: a
+	 * noisy-MAX variable is divorced into a chain of conditional
+	 * distributions instead (see divorce).
+	 */
+	public static List<Factor> nonNegativeFactorsOf(BayesianNetwork network, Variable v, Condition evidence) {
+		Variable.Family family = network.family(v);
+		if (!(family.distribution instanceof NoisyMax))
+			return factorsOf(network, v, evidence);
+		List<Factor> ret = new ArrayList<Factor>();
+		divorce((NoisyMax) family.distribution, evidence, ret);
+		return ret;
+	}
+
+	/**
+	 * Causal independence decomposition of a noisy-MAX variable Y.
+	 * 
+	 * A hidden copy Y' of the variable is introduced, so that
+	 *       P(y | X1..Xk) = SUM_OVER y': g(y, y') * leak(y') * PRODUCT_OVER: P(Yi <= y' | Xi)
+	 * where g(y, y') is 1 if y = y', -1 if y' is the value just below y and 0
+	 * otherwise. Every factor spans at most two variables.
+	 */
+	private static void decompose(NoisyMax dist, Condition evidence, List<Factor> dest) {
+		Variable y = dist.variable;
+		Variable aux = dist.auxiliary;
+		List<Value> auxValues = new ArrayList<Value>(aux.domain.values());
+		int n = auxValues.size();
 
+		// g(Y, Y'), restricted to the observed value of Y if any.
+		Value observed = evidence.get(y);
+		List<Variable> scope = new ArrayList<Variable>();
+		if (observed == null)
+			scope.add(y);
+		scope.add(aux);
+		Map<Condition, Double> table = new HashMap<Condition, Double>();
+		for (int i = 0; i < n; i++) {
+			if (observed != null && dist.values.get(i) != observed)
+				continue;
+			for (int j = 0; j < n; j++) {
+				double g = i == j ? 1.0 : (i == j + 1 ? -1.0 : 0.0);
+				List<Event> events = new ArrayList<Event>();
+				if (observed == null)
+					events.add(new Event(y, dist.values.get(i)));
+				events.add(new Event(aux, auxValues.get(j)));
+				table.put(new Condition(events), g);
+			}
+		}
+		dest.add(new Factor(scope, table));
+
+		// The leak, P(leak <= y').
+		dest.add(cumulative(aux, auxValues, null, null, dist.leak()));
+
+		// One factor P(Yi <= y' | Xi) for each parent with an effect.
+		for (int i = 0; i < dist.parents.size(); i++) {
+			Variable parent = dist.parents.get(i);
+			Value value = evidence.get(parent);
+			if (value != null) {
+				double[] cdf = dist.cumulative(i, value);
+				if (cdf != null)
+					dest.add(cumulative(aux, auxValues, null, null, cdf));
+				continue;
+			}
+			boolean effective = false;
+			for (Value v : parent.domain.values())
+				effective |= dist.cumulative(i, v) != null;
+			if (!effective)
+				continue;
+
+			Map<Condition, Double> pt = new HashMap<Condition, Double>();
+			for (Value v : parent.domain.values())
+				pt.putAll(cumulative(aux, auxValues, parent, v, dist.cumulative(i, v)).p);
+			dest.add(new Factor(new ArrayList<Variable>(Arrays.asList(parent, aux)), pt));
+		}
+	}
+
+	/**
+	 * Parent divorcing of a noisy-MAX variable Y.
+	 * 
+	 * The causes of the unobserved parents X1..Xm with an effect are taken
+	 * one after the other, Zj being the largest of the leak and of the first
+	 * j causes, so Z1 only depends on X1 and Zj = max(Zj-1, Yj):
+	 *       P(zj | zj-1, xj) = P(Yj <= zj | xj)                     if zj = zj-1
+	 *                          P(Yj <= zj | xj) - P(Yj < zj | xj)   if zj > zj-1
+	 *                          0                                    otherwise
+	 * and Zm is Y itself. The causes of the observed parents are folded into
+	 * the leak, as the cumulative distributions of independent causes
+	 * multiply. Every factor is a conditional distribution over at most two
+	 * partial maxima and one parent.
+	 */
+	private static void divorce(NoisyMax dist, Condition evidence, List<Factor> dest) {
+		Variable y = dist.variable;
+		int n = dist.values.size();
+		double[] leak = dist.leak().clone();
+		List<Integer> causes = new ArrayList<Integer>();
+		for (int i = 0; i < dist.parents.size(); i++) {
+			Variable parent = dist.parents.get(i);
+			Value value = evidence.get(parent);
+			if (value != null) {
+				double[] cdf = dist.cumulative(i, value);
+				if (cdf != null)
+					for (int z = 0; z < n; z++)
+						leak[z] *= cdf[z];
+				continue;
+			}
+			for (Value v : parent.domain.values())
+				if (dist.cumulative(i, v) != null) {
+					causes.add(i);
+					break;
+				}
+		}
+
+		Value observed = evidence.get(y);
+		if (causes.isEmpty()) {
+			Map<Condition, Double> table = new HashMap<Condition, Double>();
+			List<Variable> scope = new ArrayList<Variable>();
+			if (observed == null)
+				scope.add(y);
+			for (int z = 0; z < n; z++) {
+				if (observed != null && dist.values.get(z) != observed)
+					continue;
+				List<Event> events = new ArrayList<Event>();
+				if (observed == null)
+					events.add(new Event(y, dist.values.get(z)));
+				table.put(new Condition(events), leak[z] - (z > 0 ? leak[z - 1] : 0.0));
+			}
+			dest.add(new Factor(scope, table));
+			return;
+		}
+
+		Variable previous = null;
+		for (int j = 0; j < causes.size(); j++) {
+			int i = causes.get(j);
+			Variable parent = dist.parents.get(i);
+			boolean last = j == causes.size() - 1;
+			Variable next = last ? y : dist.partials.get(j);
+			boolean fixed = last && observed != null;
+			List<Variable> scope = new ArrayList<Variable>();
+			if (previous != null)
+				scope.add(previous);
+			scope.add(parent);
+			if (!fixed)
+				scope.add(next);
+
+			Map<Condition, Double> table = new HashMap<Condition, Double>();
+			List<Value> nextValues = new ArrayList<Value>(next.domain.values());
+			List<Value> previousValues = previous == null ? null : new ArrayList<Value>(previous.domain.values());
+			for (Value x : parent.domain.values()) {
+				double[] cdf = dist.cumulative(i, x);
+				for (int zp = 0; zp < (previous == null ? 1 : n); zp++)
+					for (int z = 0; z < n; z++) {
+						if (fixed && dist.values.get(z) != observed)
+							continue;
+						double p;
+						if (previous == null) // the leak is the first cause
+							p = leak[z] * at(cdf, z) - (z > 0 ? leak[z - 1] * at(cdf, z - 1) : 0.0);
+						else if (z == zp)
+							p = at(cdf, z);
+						else if (z > zp)
+							p = at(cdf, z) - at(cdf, z - 1);
+						else
+							p = 0.0;
+						List<Event> events = new ArrayList<Event>();
+						if (previous != null)
+							events.add(new Event(previous, previousValues.get(zp)));
+						events.add(new Event(parent, x));
+						if (!fixed)
+							events.add(new Event(next, nextValues.get(z)));
+						table.put(new Condition(events), p);
+					}
+			}
+			dest.add(new Factor(scope, table));
+			previous = next;
+		}
+	}
+
+	/**
+	 * A value of a cumulative distribution, a null one having no effect.
+	 */
+	private static double at(double[] cdf, int z) {
+		return cdf == null ? 1.0 : cdf[z];
+	}
+
+	/**
+	 * A factor over Y' (and the parent outcome if given) from a cumulative
+	 * distribution, a null distribution has no effect.
+	 */
+	private static Factor cumulative(Variable aux, List<Value> auxValues, Variable parent, Value value, double[] cdf) {
+		List<Variable> scope = new ArrayList<Variable>();
+		if (parent != null)
+			scope.add(parent);
+		scope.add(aux);
+		Map<Condition, Double> table = new HashMap<Condition, Double>();
+		for (int j = 0; j < auxValues.size(); j++) {
+			List<Event> events = new ArrayList<Event>();
+			if (parent != null)
+				events.add(new Event(parent, value));
+			events.add(new Event(aux, auxValues.get(j)));
+			table.put(new Condition(events), cdf == null ? 1.0 : cdf[j]);
+		}
+		return new Factor(scope, table);
+	}
+
+	/**
+	 * A tree distribution as a factor over the parents still tested under the
+	 * evidence only.
+	 */
+	private static Factor reduce(TreeDistribution dist, List<Variable> parents, Condition evidence) {
+		Set<Variable> scope = dist.scope(evidence);
+		return tabulate(dist.variable, dist, parents, new ArrayList<Variable>(scope), evidence);
+	}
+
+	/**
+	 * Evaluate a parametric distribution over the given parents (among all
+	 * those of its family) and the variable, with evidence fixed and removed
+	 * from the factor.
+	 */
+	private static Factor tabulate(Variable v, Distribution dist, List<Variable> family, List<Variable> parents,
+			Condition evidence) {
+		List<Variable> scope = new ArrayList<Variable>();
+		for (Variable parent : parents)
+			if (!evidence.mention(parent))
+				scope.add(parent);
+		if (!evidence.mention(v))
+			scope.add(v);
+		if (VariableElimination.size(scope) > Integer.MAX_VALUE)
+			throw new ValidationError("The distribution of <" + v.name + "> is too large to tabulate.");
+
+		List<Event> fixed = new ArrayList<Event>();
+		for (Event e : evidence)
+			if (e.node == v || family.contains(e.node))
+				fixed.add(e);
+
+		// Parents outside the scope do not affect the distribution, any value will do.
+		for (Variable parent : family)
+			if (!scope.contains(parent) && !evidence.mention(parent))
+				fixed.add(new Event(parent, parent.domain.values().iterator().next()));
+
+		Map<Condition, Double> table = new HashMap<Condition, Double>();
+		for (Condition cond : Variable.allConditions(scope)) {
+			List<Event> events = new ArrayList<Event>(fixed);
+			for (Event e : cond)
+				events.add(e);
+			table.put(cond, dist.probability(new Condition(events)));
+		}
+		return new Factor(scope, table);
+	}
+
+	/**
+	 * The factor over no variable with value 1, neutral for join.
+	 */
+	public static Factor unit() {
+		Map<Condition, Double> p = new HashMap<Condition, Double>();
+		p.put(new Condition(new ArrayList<Event>()), 1.0);
+		return new Factor(new ArrayList<Variable>(), p);
+	}
+
+	/**
+	 * The factor over a variable that is 1 for the observed value and 0
+	 * otherwise, entering evidence without removing the variable.
+	 */
+	public static Factor indicator(Variable var, Value observed) {
+		Map<Condition, Double> p = new HashMap<Condition, Double>();
+		for (Value v : var.domain.values())
+			p.put(new Condition(new ArrayList<Event>(Arrays.asList(new Event(var, v)))), v == observed ? 1.0 : 0.0);
+		return new Factor(new ArrayList<Variable>(Arrays.asList(var)), p);
+	}
+
+	/**
+	 * A copy of the factor, so that eliminating from it leaves this one intact.
+	 */
+	public Factor copy() {
+		return new Factor(new ArrayList<Variable>(variables), p);
+	}
+
+	/**
+	 * A copy of the factor with the variables in evidence fixed to their
+	 * observed values and removed.
+	 */
+	public Factor restrict(Condition evidence) {
+		Factor ret = copy();
+		ret.observe(evidence);
+		return ret;
+	}
+
+	private void observe(Condition evidence) {
 		for (Event e : evidence) {
 			if (variables.contains(e.node)) {
 				Map<Condition, Double> newP = new HashMap<Condition, Double>();
@@ -42,11 +361,6 @@ public class Factor {
 		}
 	}
 
-	private Factor(List<Variable> v, Map<Condition, Double> p) {
-		variables = v;
-		this.p = p;
-	}
-
 	/**
 	 * Index the factor by condition will return the corresponding probability.
 	 */
@@ -76,6 +390,53 @@ public class Factor {
 		p = newP;
 	}
 
+	/**
+	 * Eliminate a variable from factor by max out
+	 * 
+	 * The variable will be deleted from the factor and each remaining
+	 * condition keeps its largest probability over the values of the variable.
+	 * 
+	 * @return the value of the variable reaching the maximum, for each
+	 *         remaining condition.
+	 */
+	public Map<Condition, Value> maximise(Variable var) {
+		if (!variables.remove(var))
+			throw new RuntimeException("This factor does not contain the variable <" + var.name + "> to eliminate.");
+
+		Map<Condition, Double> newP = new HashMap<Condition, Double>();
+		Map<Condition, Value> argmax = new HashMap<Condition, Value>();
+		for (Condition cond : Variable.allConditions(variables))
+			for (Condition oldC : p.keySet())
+				if (oldC.contains(cond)) {
+					Double d = p.get(oldC);
+					if (!newP.containsKey(cond) || d > newP.get(cond)) {
+						newP.put(cond, d);
+						argmax.put(cond, oldC.get(var));
+					}
+				}
+		p = newP;
+		return argmax;
+	}
+
+	/**
+	 * Min out a variable, keeping the smallest entry of each configuration
+	 * of the remaining variables.
+	 */
+	public void minimise(Variable var) {
+		if (!variables.remove(var))
+			throw new RuntimeException("This factor does not contain the variable <" + var.name + "> to eliminate.");
+
+		Map<Condition, Double> newP = new HashMap<Condition, Double>();
+		for (Condition cond : Variable.allConditions(variables))
+			for (Condition oldC : p.keySet())
+				if (oldC.contains(cond)) {
+					Double d = p.get(oldC);
+					if (!newP.containsKey(cond) || d < newP.get(cond))
+						newP.put(cond, d);
+				}
+		p = newP;
+	}
+
 	/**
 	 * Join two factor by point wise product.
 	 * 
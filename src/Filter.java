@@ -0,0 +1,32 @@
+import java.util.Map;
+
+/**
+ * A common interface to be implemented by the filters of a dynamic Bayesian
+ * network i.e. ForwardFilter and ParticleFilter, which keep the belief state
+ * of the current time slice only.
+ */
+public interface Filter {
+
+	/**
+	 * Advance one time slice, the first call giving the first slice.
+	 *
+	 * @param observation
+	 *            - the index of the observed value of each variable of the
+	 *            slice, RecordReader.MISSING if unobserved. See
+	 *            DynamicBayesianNetwork.parseObservation.
+	 * @return the log probability of the observation given the previous
+	 *         ones.
+	 */
+	public double step(int[] observation);
+
+	/**
+	 * The distribution of a variable of the current slice given all
+	 * observations so far, by value name in domain order.
+	 */
+	public Map<String, Double> posterior(String name);
+
+	/**
+	 * The number of slices observed.
+	 */
+	public int time();
+}
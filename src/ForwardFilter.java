@@ -0,0 +1,312 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import BayesianNetwork.*;
+
+/**
+ * Exact forward filtering of a dynamic Bayesian network by the interface
+ * algorithm.
+ *
+ * The belief state is the joint distribution of the forward interface of
+ * the current slice (see DynamicBayesianNetwork.interfaceNodes), with any
+ * monitored variable, given the observations so far. It is kept as a dense
+ * array indexed by the values of these variables, the last one being the
+ * least significant digit, so memory does not grow with time.
+ *
+ * Advancing one slice multiplies the belief by a table
+ *       T[i][s] = P(state s, observation | previous interface i)
+ * then normalises. The table only depends on which values are observed, so
+ * it is computed once by VariableElimination on the transition network for
+ * each distinct observation and kept in a bounded cache; each later slice
+ * with the same observation is a vector matrix product.
+ */
+public class ForwardFilter implements Filter {
+
+	DynamicBayesianNetwork dbn;
+	List<String> slice;
+
+	// slice positions and numbers of values of the state and interface variables
+	int[] state, stateValues, stateStrides;
+	int[] interfaces, interfaceValues;
+	int stateSize, interfaceSize;
+	// interface index of each state index
+	int[] project;
+
+	double[] belief, marginal, next;
+	int time;
+	double logLikelihood;
+
+	Map<Observation, double[]> priors, transitions;
+
+	/**
+	 * @param monitored
+	 *            - names of variables kept in the belief state so that their
+	 *            posterior can be asked, in addition to the interface.
+	 */
+	public ForwardFilter(DynamicBayesianNetwork dbn, String... monitored) {
+		this(dbn, 1024, monitored);
+	}
+
+	/**
+	 * @param cacheSize
+	 *            - the number of distinct observations whose tables are kept.
+	 */
+	public ForwardFilter(DynamicBayesianNetwork dbn, int cacheSize, String... monitored) {
+		dbn.validate();
+		this.dbn = dbn;
+		slice = dbn.slice();
+		List<String> iface = dbn.interfaceNodes();
+		Set<String> names = new LinkedHashSet<String>(iface);
+		names.addAll(Arrays.asList(monitored));
+
+		state = new int[names.size()];
+		int j = 0;
+		for (String name : slice)
+			if (names.remove(name))
+				state[j++] = slice.indexOf(name);
+		if (!names.isEmpty())
+			throw new ValidationError("No such variables " + names + ".");
+		stateValues = sizes(state);
+		stateStrides = strides(stateValues);
+		stateSize = product(stateValues);
+
+		interfaces = new int[iface.size()];
+		for (int i = 0; i < interfaces.length; i++)
+			interfaces[i] = slice.indexOf(iface.get(i));
+		interfaceValues = sizes(interfaces);
+		interfaceSize = product(interfaceValues);
+
+		project = new int[stateSize];
+		for (int s = 0; s < stateSize; s++)
+			for (int i = 0; i < state.length; i++) {
+				int k = Arrays.binarySearch(interfaces, state[i]);
+				if (k >= 0)
+					project[s] = project[s] * interfaceValues[k] + digit(s, i);
+			}
+
+		belief = new double[stateSize];
+		marginal = new double[interfaceSize];
+		next = new double[stateSize];
+		priors = cache(cacheSize);
+		transitions = cache(cacheSize);
+	}
+
+	@Override
+	public double step(int[] observation) {
+		Observation key = new Observation(observation);
+		if (time == 0) {
+			double[] table = priors.get(key);
+			if (table == null) {
+				table = priorTable(observation);
+				priors.put(key, table);
+			}
+			System.arraycopy(table, 0, next, 0, stateSize);
+		} else {
+			double[] table = transitions.get(key);
+			if (table == null) {
+				table = transitionTable(observation);
+				transitions.put(key, table);
+			}
+			Arrays.fill(marginal, 0.0);
+			for (int s = 0; s < stateSize; s++)
+				marginal[project[s]] += belief[s];
+			Arrays.fill(next, 0.0);
+			for (int i = 0; i < interfaceSize; i++) {
+				double m = marginal[i];
+				if (m == 0)
+					continue;
+				for (int s = 0, row = i * stateSize; s < stateSize; s++)
+					next[s] += m * table[row + s];
+			}
+		}
+
+		double total = 0.0;
+		for (double p : next)
+			total += p;
+		if (total <= 0)
+			throw new RuntimeException("Impossible observation at time " + time + ".");
+		double[] swap = belief;
+		belief = next;
+		next = swap;
+		for (int s = 0; s < stateSize; s++)
+			belief[s] /= total;
+		time++;
+		logLikelihood += Math.log(total);
+		return Math.log(total);
+	}
+
+	@Override
+	public Map<String, Double> posterior(String name) {
+		int i = 0;
+		while (i < state.length && !slice.get(state[i]).equals(name))
+			i++;
+		if (i == state.length)
+			throw new ValidationError("The variable <" + name + "> is not in the belief state.");
+		double[] p = new double[stateValues[i]];
+		for (int s = 0; s < stateSize; s++)
+			p[digit(s, i)] += belief[s];
+		Map<String, Double> ret = new LinkedHashMap<String, Double>();
+		int k = 0;
+		for (String value : dbn.prior.getNode(name).domain.keySet())
+			ret.put(value, p[k++]);
+		return ret;
+	}
+
+	@Override
+	public int time() {
+		return time;
+	}
+
+	/**
+	 * The log probability of all observations so far.
+	 */
+	public double logLikelihood() {
+		return logLikelihood;
+	}
+
+	/**
+	 * Forget all observations, keeping the cached tables.
+	 */
+	public void reset() {
+		time = 0;
+		logLikelihood = 0.0;
+	}
+
+	/**
+	 * P(state, observation) in the first slice.
+	 */
+	private double[] priorTable(int[] observation) {
+		double[] ret = new double[stateSize];
+		fill(ret, 0, dbn.prior, observed(dbn.prior, observation, new ArrayList<Event>()), observation);
+		return ret;
+	}
+
+	/**
+	 * P(state, observation | previous interface) for each value of the
+	 * previous interface, each previous variable being observed in the
+	 * transition network. Their uniform distributions are divided out.
+	 */
+	private double[] transitionTable(int[] observation) {
+		double[] ret = new double[interfaceSize * stateSize];
+		List<Variable> previous = new ArrayList<Variable>();
+		for (int i : interfaces)
+			previous.add(dbn.transition.getNode(slice.get(i) + DynamicBayesianNetwork.PREVIOUS));
+		int i = 0;
+		for (Condition c : Variable.allConditions(previous)) {
+			List<Event> events = new ArrayList<Event>();
+			for (Event e : c)
+				events.add(e);
+			fill(ret, i * stateSize, dbn.transition, observed(dbn.transition, observation, events), observation);
+			for (int s = 0; s < stateSize; s++)
+				ret[i * stateSize + s] *= interfaceSize;
+			i++;
+		}
+		return ret;
+	}
+
+	/**
+	 * The observation as evidence on a network, with the given events.
+	 */
+	private Condition observed(BayesianNetwork network, int[] observation, List<Event> events) {
+		for (int i = 0; i < observation.length; i++)
+			if (observation[i] != RecordReader.MISSING) {
+				Variable v = network.getNode(slice.get(i));
+				events.add(new Event(v, new ArrayList<Value>(v.domain.values()).get(observation[i])));
+			}
+		return new Condition(events);
+	}
+
+	/**
+	 * Write the joint probability of each state with the evidence from an
+	 * offset, 0 for states disagreeing with the observation.
+	 */
+	private void fill(double[] dest, int offset, BayesianNetwork network, Condition evidence, int[] observation) {
+		List<Variable> query = new ArrayList<Variable>();
+		for (int i : state)
+			if (observation[i] == RecordReader.MISSING)
+				query.add(network.getNode(slice.get(i)));
+		List<Factor> factors = new VariableElimination(network).factors(evidence, query);
+		Factor joint = factors.isEmpty() ? Factor.unit()
+				: VariableElimination.eliminate(factors, VariableElimination.order(factors, query));
+
+		states: for (int s = 0; s < stateSize; s++) {
+			List<Event> events = new ArrayList<Event>();
+			for (int i = 0; i < state.length; i++) {
+				int observed = observation[state[i]];
+				if (observed == RecordReader.MISSING) {
+					Variable v = network.getNode(slice.get(state[i]));
+					events.add(new Event(v, new ArrayList<Value>(v.domain.values()).get(digit(s, i))));
+				} else if (observed != digit(s, i))
+					continue states;
+			}
+			Double p = joint.get(new Condition(events));
+			dest[offset + s] = p == null ? 0.0 : p;
+		}
+	}
+
+	private int digit(int s, int i) {
+		return s / stateStrides[i] % stateValues[i];
+	}
+
+	/**
+	 * The observation of a slice as a key of the caches, whatever the number
+	 * of variables. The values are copied, so the caller may reuse its array.
+	 */
+	static class Observation {
+		final int[] values;
+		final int hash;
+
+		Observation(int[] values) {
+			this.values = values.clone();
+			hash = Arrays.hashCode(values);
+		}
+
+		public boolean equals(Object other) {
+			return other instanceof Observation && Arrays.equals(values, ((Observation) other).values);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	private int[] sizes(int[] positions) {
+		int[] ret = new int[positions.length];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = dbn.prior.getNode(slice.get(positions[i])).domain.size();
+		return ret;
+	}
+
+	private static int[] strides(int[] sizes) {
+		int[] ret = new int[sizes.length];
+		int stride = 1;
+		for (int i = sizes.length - 1; i >= 0; i--) {
+			ret[i] = stride;
+			stride *= sizes[i];
+		}
+		return ret;
+	}
+
+	private static int product(int[] sizes) {
+		int ret = 1;
+		for (int s : sizes)
+			ret *= s;
+		return ret;
+	}
+
+	private static Map<Observation, double[]> cache(final int capacity) {
+		return new LinkedHashMap<Observation, double[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Observation, double[]> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+}
@@ -0,0 +1,12 @@
+
+/**
+ * A listener notified with the statistics of every query answered by an
+ * inference method, once it is complete.
+ * 
+ * Statistics are only collected while a listener is set, so inference costs
+ * nothing more when none is.
+ */
+public interface InferenceListener {
+
+	public void queryCompleted(QueryStatistics stats);
+}
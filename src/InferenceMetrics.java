@@ -0,0 +1,125 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * A listener aggregating the statistics of all queries, exposed as an MXBean
+ * once registered.
+ * 
+ * For example:
+ *         InferenceMetrics metrics = new InferenceMetrics();
+ *         metrics.register("ve");
+ *         ve.setListener(metrics);
+ */
+public class InferenceMetrics implements InferenceListener, InferenceMetricsMXBean {
+
+	AtomicLong queries = new AtomicLong();
+	AtomicLong parseNanos = new AtomicLong();
+	AtomicLong planNanos = new AtomicLong();
+	AtomicLong computeNanos = new AtomicLong();
+	AtomicLong largestFactor = new AtomicLong();
+	AtomicLong multiplyAdds = new AtomicLong();
+	AtomicLong maxInducedWidth = new AtomicLong();
+	AtomicLong samples = new AtomicLong();
+	volatile QueryStatistics last;
+
+	/**
+	 * Register on the platform MBean server under
+	 * "BayesianNetwork:type=InferenceMetrics,name=..."
+	 */
+	public void register(String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("BayesianNetwork:type=InferenceMetrics,name=" + ObjectName.quote(name)));
+		} catch (JMException e) {
+			throw new RuntimeException("Cannot register metrics <" + name + ">.", e);
+		}
+	}
+
+	@Override
+	public void queryCompleted(QueryStatistics stats) {
+		queries.incrementAndGet();
+		parseNanos.addAndGet(stats.parseTime);
+		planNanos.addAndGet(stats.planTime);
+		computeNanos.addAndGet(stats.computeTime);
+		multiplyAdds.addAndGet(stats.multiplyAdds);
+		samples.addAndGet(stats.samples);
+		max(largestFactor, stats.largestFactor);
+		max(maxInducedWidth, stats.inducedWidth);
+		last = stats;
+	}
+
+	private static void max(AtomicLong value, long candidate) {
+		long current;
+		while ((current = value.get()) < candidate && !value.compareAndSet(current, candidate))
+			;
+	}
+
+	@Override
+	public long getQueries() {
+		return queries.get();
+	}
+
+	@Override
+	public long getTotalParseNanos() {
+		return parseNanos.get();
+	}
+
+	@Override
+	public long getTotalPlanNanos() {
+		return planNanos.get();
+	}
+
+	@Override
+	public long getTotalComputeNanos() {
+		return computeNanos.get();
+	}
+
+	@Override
+	public long getLargestFactor() {
+		return largestFactor.get();
+	}
+
+	@Override
+	public long getTotalMultiplyAdds() {
+		return multiplyAdds.get();
+	}
+
+	@Override
+	public int getMaxInducedWidth() {
+		return (int) maxInducedWidth.get();
+	}
+
+	@Override
+	public long getTotalSamples() {
+		return samples.get();
+	}
+
+	@Override
+	public double getLastSamplesPerSecond() {
+		QueryStatistics s = last;
+		return s == null ? 0.0 : s.samplesPerSecond;
+	}
+
+	@Override
+	public double getLastEffectiveSamples() {
+		QueryStatistics s = last;
+		return s == null ? 0.0 : s.effectiveSamples;
+	}
+
+	@Override
+	public String getLastQuery() {
+		QueryStatistics s = last;
+		return s == null ? null : s.toString();
+	}
+
+	@Override
+	public void reset() {
+		for (AtomicLong a : new AtomicLong[] { queries, parseNanos, planNanos, computeNanos, largestFactor,
+				multiplyAdds, maxInducedWidth, samples })
+			a.set(0);
+		last = null;
+	}
+}
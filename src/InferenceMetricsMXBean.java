@@ -0,0 +1,31 @@
+
+/**
+ * Management interface of the aggregated query statistics, see
+ * InferenceMetrics.
+ */
+public interface InferenceMetricsMXBean {
+
+	public long getQueries();
+
+	public long getTotalParseNanos();
+
+	public long getTotalPlanNanos();
+
+	public long getTotalComputeNanos();
+
+	public long getLargestFactor();
+
+	public long getTotalMultiplyAdds();
+
+	public int getMaxInducedWidth();
+
+	public long getTotalSamples();
+
+	public double getLastSamplesPerSecond();
+
+	public double getLastEffectiveSamples();
+
+	public String getLastQuery();
+
+	public void reset();
+}
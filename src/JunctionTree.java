@@ -0,0 +1,365 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import BayesianNetwork.*;
+
+/**
+ * The junction tree algorithm (Shafer-Shenoy message passing) implementation
+ * in java
+ *
+ * The tree is compiled once from the network: cliques are the scopes joined
+ * by variable elimination in the greedy order, each connected to the clique
+ * of the next variable of its separator to be eliminated, and every factor of
+ * the network is assigned to the first clique containing it.
+ *
+ * Evidence is entered as indicator factors in the cliques, so the tree does
+ * not depend on it. Messages between cliques are computed on demand and
+ * cached, so every query sharing the same evidence after the first one only
+ * costs the product of the messages into one clique, and a change of evidence
+ * only recomputes the messages depending on the changed observations.
+ *
+ * Queries are in the same format as VariableElimination.
+ */
+public class JunctionTree implements Inference, NetworkListener {
+
+	BayesianNetwork network;
+	List<Clique> cliques;
+	Map<Variable, Clique> home; // the smallest clique containing each variable
+	Map<Variable, List<Factor>> families; // the factors made for each variable
+	Condition evidence;
+
+	/**
+	 * A node of the tree, with its assigned factors and the messages it sent.
+	 */
+	class Clique {
+		final int id;
+		final Set<Variable> scope;
+		List<Factor> factors;
+		List<Clique> neighbours;
+		Map<Clique, Factor> messages; // message sent to each neighbour
+		Factor potential; // product of factors and evidence, null if not computed
+
+		Clique(int id, Set<Variable> scope) {
+			this.id = id;
+			this.scope = scope;
+			factors = new ArrayList<Factor>();
+			neighbours = new ArrayList<Clique>();
+			messages = new HashMap<Clique, Factor>();
+		}
+
+		Set<Variable> separator(Clique other) {
+			Set<Variable> ret = new HashSet<Variable>(scope);
+			ret.retainAll(other.scope);
+			return ret;
+		}
+
+		long size() {
+			return VariableElimination.size(scope);
+		}
+	}
+
+	public JunctionTree(BayesianNetwork network) {
+		this.network = network;
+		evidence = new Condition(new ArrayList<Event>());
+		compile();
+		network.addListener(this);
+	}
+
+	/**
+	 * A tree of a network derived from the one of this tree, see
+	 * BayesianNetwork.derive(). The cliques, the factors and the cached
+	 * messages are shared, and only those depending on the overridden tables
+	 * are made again.
+	 */
+	public synchronized JunctionTree derive(BayesianNetwork overlay) {
+		if (overlay.nodes != network.nodes)
+			return new JunctionTree(overlay);
+		return new JunctionTree(overlay, this);
+	}
+
+	private JunctionTree(BayesianNetwork network, JunctionTree base) {
+		this.network = network;
+		evidence = base.evidence;
+		families = new LinkedHashMap<Variable, List<Factor>>(base.families);
+		cliques = new ArrayList<Clique>();
+		for (Clique c : base.cliques) {
+			Clique copy = new Clique(c.id, c.scope);
+			copy.factors.addAll(c.factors);
+			copy.potential = c.potential;
+			cliques.add(copy);
+		}
+		for (Clique c : base.cliques) {
+			Clique copy = cliques.get(c.id);
+			for (Clique n : c.neighbours)
+				copy.neighbours.add(cliques.get(n.id));
+			for (Map.Entry<Clique, Factor> m : c.messages.entrySet())
+				copy.messages.put(cliques.get(m.getKey().id), m.getValue());
+		}
+		home = new HashMap<Variable, Clique>();
+		for (Map.Entry<Variable, Clique> h : base.home.entrySet())
+			home.put(h.getKey(), cliques.get(h.getValue().id));
+
+		for (Variable v : new ArrayList<Variable>(families.keySet()))
+			if (network.probabilities(v) != base.network.probabilities(v)
+					|| network.distribution(v) != base.network.distribution(v))
+				familyChanged(v, false);
+		network.addListener(this);
+	}
+
+	/**
+	 * Build the cliques from a simulated elimination over all variables.
+	 */
+	private void compile() {
+		Condition none = new Condition(new ArrayList<Event>());
+		families = new VariableElimination(network).families(none, null);
+		List<Factor> factors = new ArrayList<Factor>();
+		for (List<Factor> family : families.values())
+			factors.addAll(family);
+		List<Variable> query = Collections.emptyList();
+		List<Variable> order = VariableElimination.order(factors, query);
+
+		List<Set<Variable>> scopes = VariableElimination.scopes(factors);
+		cliques = new ArrayList<Clique>();
+		Map<Variable, Integer> position = new HashMap<Variable, Integer>();
+		for (Variable v : order) {
+			position.put(v, cliques.size());
+			cliques.add(new Clique(cliques.size(), VariableElimination.eliminate(v, scopes)));
+		}
+
+		// Connect each clique to the one of the first variable of its
+		// separator eliminated after it.
+		for (int i = 0; i < order.size(); i++) {
+			Clique c = cliques.get(i);
+			int parent = Integer.MAX_VALUE;
+			for (Variable v : c.scope)
+				if (v != order.get(i))
+					parent = Math.min(parent, position.get(v));
+			if (parent != Integer.MAX_VALUE) {
+				c.neighbours.add(cliques.get(parent));
+				cliques.get(parent).neighbours.add(c);
+			}
+		}
+
+		home = new HashMap<Variable, Clique>();
+		for (Clique c : cliques)
+			for (Variable v : c.scope)
+				if (!home.containsKey(v) || home.get(v).size() > c.size())
+					home.put(v, c);
+
+		for (Factor f : factors)
+			assign(f);
+	}
+
+	/**
+	 * Add a factor to the first clique containing all its variables.
+	 */
+	private Clique assign(Factor f) {
+		Clique c = find(f);
+		if (c == null)
+			throw new RuntimeException("No clique contains the factor " + f.variables + ".");
+		c.factors.add(f);
+		return c;
+	}
+
+	private Clique find(Factor f) {
+		for (Clique c : cliques)
+			if (c.scope.containsAll(f.variables))
+				return c;
+		return null;
+	}
+
+	/**
+	 * Follow an update of the network. A new table is swapped into the
+	 * cliques of the family, only forgetting the results depending on them,
+	 * while a change of structure compiles the tree again. Queries in progress
+	 * complete first, on the factors they started with.
+	 */
+	@Override
+	public synchronized void familyChanged(Variable variable, boolean structure) {
+		List<Factor> family = null;
+		if (!structure) {
+			family = Factor.factorsOf(network, variable, new Condition(new ArrayList<Event>()));
+			for (Factor f : family)
+				if (find(f) == null)
+					structure = true;
+		}
+		if (structure) {
+			compile();
+			return;
+		}
+
+		Set<Clique> touched = new HashSet<Clique>();
+		for (Factor f : families.get(variable))
+			for (Clique c : cliques)
+				if (c.factors.remove(f))
+					touched.add(c);
+		for (Factor f : family)
+			touched.add(assign(f));
+		families.put(variable, family);
+		for (Clique c : touched) {
+			c.potential = null;
+			invalidate(c, null);
+		}
+	}
+
+	/**
+	 * Number of multiply-adds to compute every message, an estimate of the
+	 * cost of answering queries under new evidence.
+	 */
+	public long calibrationCost() {
+		long cost = 0;
+		for (Clique c : cliques)
+			cost += c.size() * (c.neighbours.size() + c.factors.size()) * 2;
+		return cost;
+	}
+
+	/**
+	 * Size of the largest clique.
+	 */
+	public long largestClique() {
+		long ret = 1;
+		for (Clique c : cliques)
+			ret = Math.max(ret, c.size());
+		return ret;
+	}
+
+	/**
+	 * Whether the messages for this evidence are (at least partly) cached.
+	 */
+	public synchronized boolean calibratedFor(Condition evidence) {
+		return this.evidence.equals(evidence);
+	}
+
+	/**
+	 * Enter new evidence, forgetting only the cached results depending on the
+	 * variables whose observation changed.
+	 *
+	 * Evidence on a variable is entered in its home clique, so it only
+	 * invalidates the potential of that clique and the messages flowing away
+	 * from it; messages towards it stay valid.
+	 */
+	public synchronized void setEvidence(Condition evidence) {
+		if (this.evidence.equals(evidence))
+			return;
+		Set<Variable> changed = new HashSet<Variable>();
+		for (Event e : this.evidence)
+			if (evidence.get(e.node) != e.value)
+				changed.add(e.node);
+		for (Event e : evidence)
+			if (this.evidence.get(e.node) != e.value)
+				changed.add(e.node);
+		this.evidence = evidence;
+		for (Variable v : changed) {
+			Clique c = home.get(v);
+			c.potential = null;
+			invalidate(c, null);
+		}
+	}
+
+	/**
+	 * Forget the messages sent from a clique away from the given neighbour
+	 * (null for all), and those depending on them.
+	 */
+	private void invalidate(Clique c, Clique from) {
+		for (Clique n : c.neighbours)
+			// a message is only cached if those it depends on are
+			if (n != from && c.messages.remove(n) != null)
+				invalidate(n, c);
+	}
+
+	/**
+	 * Number of messages currently cached.
+	 */
+	public synchronized int cachedMessages() {
+		int ret = 0;
+		for (Clique c : cliques)
+			ret += c.messages.size();
+		return ret;
+	}
+
+	@Override
+	public String ask(String query) {
+		String[] q = query.split("\\|");
+		return ask(q[0], q.length > 1 ? q[1] : "");
+	}
+
+	public String ask(String var, String observed) {
+		Event target = network.parseEvent(var);
+		Condition evidence = network.parseCondition(observed);
+		Factor result = marginal(target.node, evidence);
+		return String.format("%.6f", result.p.get(new Condition(Arrays.asList(target))));
+	}
+
+	/**
+	 * The normalised posterior factor of a variable given evidence.
+	 */
+	public synchronized Factor marginal(Variable var, Condition evidence) {
+		setEvidence(evidence);
+		Clique c = home.get(var);
+		Factor belief = belief(c, null);
+		Set<Variable> keep = new HashSet<Variable>(Arrays.asList(var));
+		Factor result = sumOut(belief, keep);
+		result.normalise();
+		return result;
+	}
+
+	/**
+	 * The product of the potential of a clique with the messages from all
+	 * neighbours but one (null for all).
+	 */
+	private Factor belief(Clique c, Clique except) {
+		Factor ret = potential(c);
+		for (Clique n : c.neighbours)
+			if (n != except)
+				ret = ret.join(message(n, c));
+		return ret;
+	}
+
+	/**
+	 * The message from a clique to a neighbour, from the cache if possible.
+	 */
+	Factor message(Clique from, Clique to) {
+		Factor m = from.messages.get(to);
+		if (m == null) {
+			m = sumOut(belief(from, to), from.separator(to));
+			from.messages.put(to, m);
+		}
+		return m;
+	}
+
+	/**
+	 * The product of the factors assigned to a clique and the indicators of
+	 * the evidence on its variables.
+	 */
+	Factor potential(Clique c) {
+		if (c.potential == null) {
+			Factor p = Factor.unit();
+			for (Factor f : c.factors)
+				p = p.join(f);
+			for (Event e : evidence)
+				if (home.get(e.node) == c)
+					p = p.join(Factor.indicator(e.node, e.value));
+			c.potential = p;
+		}
+		return c.potential;
+	}
+
+	/**
+	 * Sum out every variable of a factor not to be kept.
+	 */
+	static Factor sumOut(Factor f, Set<Variable> keep) {
+		Factor ret = f.copy();
+		for (Variable v : new LinkedHashSet<Variable>(f.variables))
+			if (!keep.contains(v))
+				ret.eliminate(v);
+		return ret;
+	}
+}
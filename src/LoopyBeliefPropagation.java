@@ -0,0 +1,530 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import BayesianNetwork.*;
+
+/**
+ * Loopy belief propagation on the factor graph of a network, for networks
+ * too large or too densely connected for exact inference.
+ *
+ * Each variable is connected to the factors of its own family and to those
+ * of its children. Messages are passed along these edges until they stop
+ * changing, and the belief of a variable is the product of the messages it
+ * receives. On a tree this is exact; with loops it is an approximation that
+ * may not converge, so the number of iterations is bounded and the result
+ * tells whether the messages converged.
+ *
+ * The graph and all messages are kept in flat arrays indexed by edge. Two
+ * schedules are available:
+ *   - synchronous: all messages are computed from the previous ones at each
+ *     iteration, split between threads,
+ *   - residual: the message changing the most is sent first, and the
+ *     messages depending on it are recomputed, which converges in fewer
+ *     updates on most networks.
+ * Damping mixes each new message with the previous one to avoid oscillation.
+ *
+ * Factors are the non negative ones of Factor.nonNegativeFactorsOf: tables
+ * over the families, tree distributions over the parents they test, and
+ * noisy-MAX nodes divorced into chains of small factors, whose partial
+ * maxima are hidden variables of the graph. No noisy-MAX node is expanded
+ * to its full table. The factor graph is built again when a run finds the
+ * network updated since it was built.
+ */
+public class LoopyBeliefPropagation implements Inference {
+
+	public enum Schedule { SYNCHRONOUS, RESIDUAL }
+
+	BayesianNetwork network;
+	Schedule schedule = Schedule.RESIDUAL;
+	int nThreads = 1;
+	double damping = 0.0;
+	int maxIterations = 100;
+	double tolerance = 1e-6;
+
+	// the factor graph
+	List<Variable> variables; // those of the network first, then the hidden ones
+	int nodes; // variables of the network
+	int[] card;
+	int[] varEdgeStart; // the edges of variable v are varEdges[varEdgeStart[v]] to varEdges[varEdgeStart[v + 1] - 1]
+	int[] varEdges;
+	int[] factorEdgeStart; // the edges of factor f are factorEdgeStart[f] to factorEdgeStart[f + 1] - 1, in scope order
+	int[] tableStart;
+	double[] table; // entries of each factor, the last variable of the scope varying fastest
+	int[] edgeVar;
+	int[] edgeFactor;
+	int[] msgOffset; // start of the messages of each edge, of the size of its variable
+	int maxArity;
+	long version; // of the network the graph was built from
+
+	/**
+	 * The approximate marginals of all variables.
+	 */
+	public static class Result {
+		public final List<Variable> variables;
+		public final double[][] marginals; // by variable, values in domain order
+		public final boolean converged;
+		public final int iterations; // or updates of single messages / edges for the residual schedule
+		public final double residual; // largest change of a message in the last iteration
+
+		Result(List<Variable> variables, double[][] marginals, boolean converged, int iterations, double residual) {
+			this.variables = variables;
+			this.marginals = marginals;
+			this.converged = converged;
+			this.iterations = iterations;
+			this.residual = residual;
+		}
+
+		public double[] marginal(Variable var) {
+			return marginals[variables.indexOf(var)];
+		}
+
+		public double probability(Event event) {
+			List<Value> values = new ArrayList<Value>(event.node.domain.values());
+			return marginal(event.node)[values.indexOf(event.value)];
+		}
+	}
+
+	public LoopyBeliefPropagation(BayesianNetwork network) {
+		this.network = network;
+		build();
+	}
+
+	/**
+	 * Build the factor graph from a single version of the network.
+	 */
+	private void build() {
+		do {
+			version = network.stableVersion();
+			compile();
+		} while (network.version() != version);
+	}
+
+	/**
+	 * @param nThreads
+	 *            - threads computing the messages of the synchronous
+	 *            schedule.
+	 */
+	public void setSchedule(Schedule schedule, int nThreads) {
+		this.schedule = schedule;
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * @param damping
+	 *            - the weight of the previous message, from 0 (none) to 1.
+	 */
+	public void setDamping(double damping) {
+		this.damping = damping;
+	}
+
+	/**
+	 * @param maxIterations
+	 *            - iterations of the synchronous schedule, or updates of every
+	 *            edge on average for the residual one.
+	 * @param tolerance
+	 *            - the largest change of a message once converged.
+	 */
+	public void setLimits(int maxIterations, double tolerance) {
+		this.maxIterations = maxIterations;
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @param query
+	 *            - a String in the format "A = a1 | B = b2, C = c1", the
+	 *            spacing is not important.
+	 * @return - the result value in string.
+	 */
+	@Override
+	public String ask(String query) {
+		String[] q = query.split("\\|");
+		Event target = network.parseEvent(q[0]);
+		Condition evidence = network.parseCondition(q.length > 1 ? q[1] : "");
+		return String.format("%.6f", run(evidence).probability(target));
+	}
+
+	/**
+	 * Build the factor graph from the non negative factors of every family.
+	 */
+	private void compile() {
+		variables = new ArrayList<Variable>(network.nodes.values());
+		nodes = variables.size();
+		Map<Variable, Integer> index = new HashMap<Variable, Integer>();
+		for (int v = 0; v < nodes; v++)
+			index.put(variables.get(v), v);
+
+		Condition none = new Condition(new ArrayList<Event>());
+		List<Factor> factors = new ArrayList<Factor>();
+		for (Variable v : network.nodes.values())
+			factors.addAll(Factor.nonNegativeFactorsOf(network, v, none));
+		for (Factor f : factors)
+			for (Variable u : f.variables)
+				if (!index.containsKey(u)) {
+					index.put(u, variables.size());
+					variables.add(u);
+				}
+		int n = variables.size(), m = factors.size();
+		card = new int[n];
+		for (int v = 0; v < n; v++)
+			card[v] = variables.get(v).domain.size();
+
+		List<Integer> edgeVars = new ArrayList<Integer>();
+		factorEdgeStart = new int[m + 1];
+		tableStart = new int[m + 1];
+		int[] degree = new int[n];
+		maxArity = 0;
+		long entries = 0;
+		for (int f = 0; f < m; f++) {
+			List<Variable> scope = factors.get(f).variables;
+			factorEdgeStart[f] = edgeVars.size();
+			entries += VariableElimination.size(scope);
+			if (entries > Integer.MAX_VALUE)
+				throw new ValidationError("The factors of the network are too large to tabulate.");
+			tableStart[f + 1] = (int) entries;
+			for (Variable u : scope) {
+				int i = index.get(u);
+				edgeVars.add(i);
+				degree[i]++;
+			}
+			maxArity = Math.max(maxArity, scope.size());
+		}
+		factorEdgeStart[m] = edgeVars.size();
+
+		table = new double[tableStart[m]];
+		for (int f = 0; f < m; f++) {
+			Factor factor = factors.get(f);
+			int k = tableStart[f];
+			for (Condition c : Variable.allConditions(factor.variables)) {
+				Double p = factor.p.get(c);
+				table[k++] = p == null ? 0.0 : p;
+			}
+		}
+
+		int e = edgeVars.size();
+		edgeVar = new int[e];
+		edgeFactor = new int[e];
+		msgOffset = new int[e + 1];
+		for (int f = 0; f < m; f++)
+			for (int i = factorEdgeStart[f]; i < factorEdgeStart[f + 1]; i++) {
+				edgeVar[i] = edgeVars.get(i);
+				edgeFactor[i] = f;
+				msgOffset[i + 1] = msgOffset[i] + card[edgeVar[i]];
+			}
+
+		varEdgeStart = new int[n + 1];
+		for (int v = 0; v < n; v++)
+			varEdgeStart[v + 1] = varEdgeStart[v] + degree[v];
+		varEdges = new int[e];
+		int[] fill = Arrays.copyOf(varEdgeStart, n);
+		for (int i = 0; i < e; i++)
+			varEdges[fill[edgeVar[i]]++] = i;
+	}
+
+	/**
+	 * Propagate the evidence and return the marginals of all variables. Runs
+	 * are serialised, so that the graph is never built again under one.
+	 */
+	public synchronized Result run(Condition evidence) {
+		if (network.version() != version)
+			build();
+		int[] observed = new int[variables.size()];
+		for (int v = 0; v < observed.length; v++) {
+			Value val = evidence.get(variables.get(v));
+			observed[v] = val == null ? RecordReader.MISSING
+					: new ArrayList<Value>(variables.get(v).domain.values()).indexOf(val);
+		}
+		return schedule == Schedule.RESIDUAL ? new Residual(observed).run() : new Synchronous(observed).run();
+	}
+
+	/**
+	 * The messages of one run.
+	 */
+	abstract class Propagation {
+		final int[] observed;
+		final double[] toVar; // from factors to variables
+		final double[] toFactor; // from variables to factors
+		final double[] candidate; // next message from factors to variables
+
+		Propagation(int[] observed) {
+			this.observed = observed;
+			int size = msgOffset[edgeVar.length];
+			toVar = new double[size];
+			toFactor = new double[size];
+			candidate = new double[size];
+			for (int e = 0; e < edgeVar.length; e++)
+				Arrays.fill(toVar, msgOffset[e], msgOffset[e + 1], 1.0 / card[edgeVar[e]]);
+			for (int e = 0; e < edgeVar.length; e++)
+				updateToFactor(e);
+		}
+
+		abstract Result run();
+
+		/**
+		 * The message from the variable of an edge to its factor: the
+		 * evidence times the messages from its other factors.
+		 */
+		void updateToFactor(int e) {
+			int v = edgeVar[e], o = msgOffset[e];
+			for (int k = 0; k < card[v]; k++)
+				toFactor[o + k] = observed[v] < 0 || observed[v] == k ? 1.0 : 0.0;
+			if (observed[v] < 0)
+				for (int i = varEdgeStart[v]; i < varEdgeStart[v + 1]; i++)
+					if (varEdges[i] != e)
+						for (int k = 0; k < card[v]; k++)
+							toFactor[o + k] *= toVar[msgOffset[varEdges[i]] + k];
+			normalise(toFactor, o, card[v]);
+		}
+
+		/**
+		 * Compute the next message from the factor of an edge to its variable
+		 * into candidate: the factor times the messages from its other
+		 * variables, summed over them.
+		 *
+		 * @param assignment
+		 *            - scratch space of at least maxArity.
+		 */
+		void computeToVar(int e, int[] assignment) {
+			int f = edgeFactor[e], start = factorEdgeStart[f], arity = factorEdgeStart[f + 1] - start, j = e - start;
+			int o = msgOffset[e];
+			Arrays.fill(candidate, o, msgOffset[e + 1], 0.0);
+			Arrays.fill(assignment, 0, arity, 0);
+			for (int k = tableStart[f]; k < tableStart[f + 1]; k++) {
+				double p = table[k];
+				if (p != 0.0) {
+					for (int i = 0; i < arity; i++)
+						if (i != j)
+							p *= toFactor[msgOffset[start + i] + assignment[i]];
+					candidate[o + assignment[j]] += p;
+				}
+				for (int i = arity - 1; i >= 0; i--) {
+					if (++assignment[i] < card[edgeVar[start + i]])
+						break;
+					assignment[i] = 0;
+				}
+			}
+			normalise(candidate, o, card[edgeVar[e]]);
+		}
+
+		/**
+		 * Replace the message of an edge by its damped candidate.
+		 */
+		void commit(int e) {
+			for (int k = msgOffset[e]; k < msgOffset[e + 1]; k++)
+				toVar[k] = (1 - damping) * candidate[k] + damping * toVar[k];
+		}
+
+		/**
+		 * The largest change the candidate of an edge would make.
+		 */
+		double residual(int e) {
+			double ret = 0.0;
+			for (int k = msgOffset[e]; k < msgOffset[e + 1]; k++)
+				ret = Math.max(ret, Math.abs(candidate[k] - toVar[k]));
+			return ret;
+		}
+
+		Result result(boolean converged, int iterations, double residual) {
+			double[][] marginals = new double[nodes][];
+			for (int v = 0; v < marginals.length; v++) {
+				double[] b = new double[card[v]];
+				for (int k = 0; k < card[v]; k++)
+					b[k] = observed[v] < 0 || observed[v] == k ? 1.0 : 0.0;
+				if (observed[v] < 0)
+					for (int i = varEdgeStart[v]; i < varEdgeStart[v + 1]; i++)
+						for (int k = 0; k < card[v]; k++)
+							b[k] *= toVar[msgOffset[varEdges[i]] + k];
+				normalise(b, 0, b.length);
+				marginals[v] = b;
+			}
+			return new Result(Collections.unmodifiableList(variables.subList(0, nodes)), marginals, converged,
+					iterations, residual);
+		}
+	}
+
+	/**
+	 * Normalise a message, or make it uniform if it is all zero (the evidence
+	 * being impossible under the other messages).
+	 */
+	static void normalise(double[] m, int offset, int length) {
+		double sum = 0.0;
+		for (int k = offset; k < offset + length; k++)
+			sum += m[k];
+		for (int k = offset; k < offset + length; k++)
+			m[k] = sum > 0 ? m[k] / sum : 1.0 / length;
+	}
+
+	/**
+	 * All messages from the previous ones at each iteration.
+	 */
+	class Synchronous extends Propagation {
+
+		Synchronous(int[] observed) {
+			super(observed);
+		}
+
+		Result run() {
+			ExecutorService pool = nThreads > 1 ? Executors.newFixedThreadPool(nThreads) : null;
+			try {
+				double residual = Double.POSITIVE_INFINITY;
+				int it = 0;
+				while (it < maxIterations && residual >= tolerance) {
+					parallel(pool, true);
+					residual = 0.0;
+					for (int e = 0; e < edgeVar.length; e++) {
+						residual = Math.max(residual, residual(e));
+						commit(e);
+					}
+					parallel(pool, false);
+					it++;
+				}
+				return result(residual < tolerance, it, residual);
+			} finally {
+				if (pool != null)
+					pool.shutdown();
+			}
+		}
+
+		/**
+		 * Compute the candidates of all edges, or the messages to all factors,
+		 * splitting the edges between threads.
+		 */
+		private void parallel(ExecutorService pool, final boolean toVar) {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int t = 0; t < nThreads; t++) {
+				final int from = (int) ((long) edgeVar.length * t / nThreads);
+				final int to = (int) ((long) edgeVar.length * (t + 1) / nThreads);
+				tasks.add(new Callable<Void>() {
+					public Void call() {
+						int[] assignment = new int[maxArity];
+						for (int e = from; e < to; e++)
+							if (toVar)
+								computeToVar(e, assignment);
+							else
+								updateToFactor(e);
+						return null;
+					}
+				});
+			}
+			try {
+				if (pool == null)
+					tasks.get(0).call();
+				else
+					for (Future<Void> f : pool.invokeAll(tasks))
+						f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * The message with the largest residual first, kept in an indexed heap
+	 * of edges.
+	 */
+	class Residual extends Propagation {
+		final int[] heap; // edges, largest residual first
+		final int[] position; // of each edge in the heap
+		final double[] key; // residual of each edge
+		final int[] assignment = new int[maxArity];
+
+		Residual(int[] observed) {
+			super(observed);
+			int n = edgeVar.length;
+			heap = new int[n];
+			position = new int[n];
+			key = new double[n];
+			for (int e = 0; e < n; e++) {
+				computeToVar(e, assignment);
+				key[e] = residual(e);
+				heap[e] = e;
+				position[e] = e;
+			}
+			for (int i = n / 2 - 1; i >= 0; i--)
+				down(i);
+		}
+
+		Result run() {
+			long limit = (long) maxIterations * edgeVar.length;
+			int updates = 0;
+			while (edgeVar.length > 0 && updates < limit && key[heap[0]] >= tolerance) {
+				int e = heap[0];
+				commit(e);
+				updates++;
+				update(e);
+
+				// The messages from the variable to its other factors changed,
+				// and so do the candidates of these factors to their other
+				// variables.
+				int v = edgeVar[e];
+				for (int i = varEdgeStart[v]; i < varEdgeStart[v + 1]; i++) {
+					int e2 = varEdges[i];
+					if (e2 == e)
+						continue;
+					updateToFactor(e2);
+					int f = edgeFactor[e2];
+					for (int e3 = factorEdgeStart[f]; e3 < factorEdgeStart[f + 1]; e3++)
+						if (e3 != e2) {
+							computeToVar(e3, assignment);
+							update(e3);
+						}
+				}
+			}
+			double residual = edgeVar.length == 0 ? 0.0 : key[heap[0]];
+			return result(residual < tolerance, updates, residual);
+		}
+
+		/**
+		 * Reposition an edge after its residual changed.
+		 */
+		private void update(int e) {
+			key[e] = residual(e);
+			up(position[e]);
+			down(position[e]);
+		}
+
+		private void up(int i) {
+			while (i > 0 && key[heap[(i - 1) / 2]] < key[heap[i]]) {
+				swap(i, (i - 1) / 2);
+				i = (i - 1) / 2;
+			}
+		}
+
+		private void down(int i) {
+			while (true) {
+				int largest = i, l = 2 * i + 1, r = l + 1;
+				if (l < heap.length && key[heap[l]] > key[heap[largest]])
+					largest = l;
+				if (r < heap.length && key[heap[r]] > key[heap[largest]])
+					largest = r;
+				if (largest == i)
+					return;
+				swap(i, largest);
+				i = largest;
+			}
+		}
+
+		private void swap(int i, int j) {
+			int t = heap[i];
+			heap[i] = heap[j];
+			heap[j] = t;
+			position[heap[i]] = i;
+			position[heap[j]] = j;
+		}
+	}
+}
@@ -19,6 +19,8 @@ public class MarkovChainMonteCarlo implements Inference{
 	Random r; // random value generator
 	BayesianNetwork bn;
 	int nSamples;
+	int burnIn; // steps discarded at the start of each chain
+	InferenceListener listener;
 
 	
 	public MarkovChainMonteCarlo(BayesianNetwork bn, int nSamples) {
@@ -27,6 +29,22 @@ public class MarkovChainMonteCarlo implements Inference{
 		this.nSamples = nSamples;
 	}
 
+	/**
+	 * @param burnIn
+	 *            - the steps run before counting in each chain, so that the
+	 *            counts do not start from the random initial state.
+	 */
+	public void setBurnIn(int burnIn) {
+		this.burnIn = Math.max(0, burnIn);
+	}
+
+	/**
+	 * Collect the statistics of every query for the listener, null to stop.
+	 */
+	public void setListener(InferenceListener listener) {
+		this.listener = listener;
+	}
+
 	// dist := {ValueName -> # of occurrence}
 	/**
 	 * Normalise the probability distribution of the queried variable's domain,
@@ -50,11 +68,15 @@ public class MarkovChainMonteCarlo implements Inference{
 	 */
 	public double computePrbGivenParent(Variable var, String value, Map<String, String> state) 
 			throws ValidationError {
-		List<String> cond = new ArrayList<String>();
-		cond.add(var.name + "=" + value);
-		for (Variable parent : var.parents)
-			cond.add(parent.name + "=" + state.get(parent.name));
-		return bn.query(var.name, common.join(",", cond));
+		// Evaluated directly from the state, no query string is built. The
+		// family is read once, so an update of the arcs during the chain never
+		// pairs the new parents with the old table.
+		Variable.Family family = bn.family(var);
+		List<Event> cond = new ArrayList<Event>();
+		cond.add(new Event(var, value));
+		for (Variable parent : family.parents)
+			cond.add(new Event(parent, state.get(parent.name)));
+		return family.probability(new Condition(cond));
 	}
 
 	/**
@@ -109,10 +131,23 @@ public class MarkovChainMonteCarlo implements Inference{
 	 * @return answer to the query. 
 	 */
 	public String ask(String cause, List<String> spec) throws ValidationError {
+		return ask(cause, spec, listener == null ? null : new QueryStatistics("MCMC", common.join(",", spec)));
+	}
+
+	/**
+	 * Gibbs sampling, recording statistics if not null.
+	 */
+	String ask(String cause, List<String> spec, QueryStatistics stats) throws ValidationError {
 		double probability;
+		long time = stats == null ? 0 : System.nanoTime();
 		try {
 			// First try if the query can be answered directly without inferencing
-			return String.format("%.6f", bn.query(cause, common.join(",", spec)));
+			String ret = String.format("%.6f", bn.query(cause, common.join(",", spec)));
+			if (stats != null) {
+				VariableElimination.phase(stats, 2, time);
+				listener.queryCompleted(stats);
+			}
+			return ret;
 			
 		} catch (Exception oooppps) { // otherwise we need to perform inference
 			// a possible configuration of the whole sample space, maps: < name -> value >
@@ -142,6 +177,11 @@ public class MarkovChainMonteCarlo implements Inference{
 				}
 			}
 
+			if (stats != null)
+				time = VariableElimination.phase(stats, 1, time);
+			QueryStatistics.EffectiveSamples chain = stats == null ? null : new QueryStatistics.EffectiveSamples();
+			int flips = 0;
+
 			// Traveling around variables and 'flip' values 
 			int counter = 0;  // count # of occurrences of the queried value
 			for (int i = 0; i < nSamples; ++i) {
@@ -158,12 +198,26 @@ public class MarkovChainMonteCarlo implements Inference{
 				// draw a new sample
 				String newVal = getSample(var, state);
 				// update state
+				if (stats != null && !newVal.equals(state.get(var.name)))
+					++flips;
 				state.put(var.name, newVal);
 				// update counter
-				if (state.get(cause).equals(queryValue))
+				boolean hit = state.get(cause).equals(queryValue);
+				if (hit)
 					++counter;
+				if (chain != null)
+					chain.add(hit);
 			}
 			probability = (double) counter/ nSamples;
+			if (stats != null) {
+				VariableElimination.phase(stats, 2, time);
+				stats.samples = nSamples;
+				stats.samplesPerSecond = nSamples * 1e9 / Math.max(stats.computeTime, 1);
+				// Gibbs moves are always accepted, so this is the rate of moves changing the state
+				stats.acceptanceRate = nSamples == 0 ? 0.0 : (double) flips / nSamples;
+				stats.effectiveSamples = chain.value();
+				listener.queryCompleted(stats);
+			}
 			return String.format("%.6f", probability);
 		}
 	}
@@ -177,6 +231,8 @@ public class MarkovChainMonteCarlo implements Inference{
 	 * @return - the answer to the query
 	 */
 	public String ask(String query) {
+		QueryStatistics stats = listener == null ? null : new QueryStatistics("MCMC", query);
+		long time = stats == null ? 0 : System.nanoTime();
 		query = query.replaceAll("\\s+", "");
 		String[] contents = query.split("\\|");
 		List<String> evidences = new ArrayList<String>();
@@ -190,6 +246,230 @@ public class MarkovChainMonteCarlo implements Inference{
 				evidences.add(common.convert(elem));
 		}
 		
-		return ask(cause, evidences);
+		if (stats != null)
+			VariableElimination.phase(stats, 0, time);
+		return ask(cause, evidences, stats);
+	}
+
+	/**
+	 * Gibbs sampling of a parsed query, for callers that already hold the
+	 * target and the evidence: the names and values are used as declared,
+	 * without going through the query format.
+	 * 
+	 * @return - the answer to the query
+	 */
+	public String ask(Event target, Condition evidence) throws ValidationError {
+		QueryStatistics stats = listener == null ? null
+				: new QueryStatistics("MCMC", target + " | " + common.join(", ", events(evidence)));
+		long time = stats == null ? 0 : System.nanoTime();
+		Value observed = evidence.get(target.node);
+		double probability;
+		if (observed != null) {
+			probability = observed == target.value ? 1.0 : 0.0;
+			if (stats != null)
+				VariableElimination.phase(stats, 2, time);
+		} else {
+			Chain chain = new Chain(evidence, new ArrayList<Variable[]>());
+			if (stats != null) {
+				time = VariableElimination.phase(stats, 1, time);
+				chain.trace(target);
+			}
+			chain.run(nSamples);
+			probability = chain.probability(new Condition(new ArrayList<Event>(Arrays.asList(target))));
+			if (stats != null) {
+				VariableElimination.phase(stats, 2, time);
+				stats.samples = chain.steps;
+				stats.samplesPerSecond = chain.steps * 1e9 / Math.max(stats.computeTime, 1);
+				stats.acceptanceRate = chain.steps == 0 ? 0.0 : (double) chain.flips / chain.steps;
+				stats.effectiveSamples = chain.trace.value();
+			}
+		}
+		if (stats != null)
+			listener.queryCompleted(stats);
+		return String.format("%.6f", probability);
+	}
+
+	private static List<String> events(Condition c) {
+		List<String> ret = new ArrayList<String>();
+		for (Event e : c)
+			ret.add(e.toString());
+		return ret;
+	}
+
+	/**
+	 * Answer a batch of queries, running one chain per distinct evidence
+	 * instead of one per query.
+	 * 
+	 * Each chain counts how long every unobserved variable keeps each of its
+	 * values, so all the queries sharing its evidence are answered from the
+	 * same samples. A query may also ask for the joint probability of two
+	 * variables, like "A = a1, B = b2 | C = c1", in which case the chain
+	 * counts that pair as well.
+	 * 
+	 * @param queries
+	 *            - Strings in the format of VariableElimination, the spacing
+	 *            is not important.
+	 * @return - the answers in the order of the queries.
+	 */
+	public List<String> askAll(List<String> queries) throws ValidationError {
+		// Group the queries by evidence.
+		List<Condition> targets = new ArrayList<Condition>();
+		Map<Condition, List<Integer>> groups = new LinkedHashMap<Condition, List<Integer>>();
+		for (int i = 0; i < queries.size(); i++) {
+			String[] q = queries.get(i).split("\\|");
+			Condition target = bn.parseCondition(q[0]);
+			Condition evidence = bn.parseCondition(q.length > 1 ? q[1] : "");
+			if (target.size() < 1 || target.size() > 2)
+				throw new ValidationError("Expected one or two events to query, received " + q[0]);
+			targets.add(target);
+			if (!groups.containsKey(evidence))
+				groups.put(evidence, new ArrayList<Integer>());
+			groups.get(evidence).add(i);
+		}
+
+		String[] ret = new String[queries.size()];
+		for (Map.Entry<Condition, List<Integer>> group : groups.entrySet()) {
+			List<Variable[]> pairs = new ArrayList<Variable[]>();
+			for (int i : group.getValue())
+				if (targets.get(i).size() == 2)
+					pairs.add(variables(targets.get(i)));
+
+			Chain chain = new Chain(group.getKey(), pairs);
+			chain.run(nSamples);
+			for (int i : group.getValue())
+				ret[i] = String.format("%.6f", chain.probability(targets.get(i)));
+		}
+		return Arrays.asList(ret);
+	}
+
+	private static Variable[] variables(Condition c) {
+		List<Variable> ret = new ArrayList<Variable>();
+		for (Event e : c)
+			ret.add(e.node);
+		return ret.toArray(new Variable[0]);
+	}
+
+	/**
+	 * A Gibbs chain under some evidence, counting the steps spent in each
+	 * value of every variable and each joint value of the pairs asked.
+	 * 
+	 * Counts are only updated when a variable changes, adding the steps since
+	 * its previous change, so every step costs the same whatever the number
+	 * of variables counted.
+	 */
+	class Chain {
+		Condition evidence;
+		Map<String, String> state = new LinkedHashMap<String, String>();
+		List<String> hidden = new ArrayList<String>();
+		Map<Variable, Map<String, Long>> counts = new HashMap<Variable, Map<String, Long>>();
+		Map<Variable, Integer> since = new HashMap<Variable, Integer>(); // step of the last change
+		List<Variable[]> pairs;
+		List<Map<String, Long>> pairCounts = new ArrayList<Map<String, Long>>();
+		int[] pairSince;
+		long steps;
+		long flips; // steps changing the state
+		Event tracked; // the event whose indicator is traced, if any
+		QueryStatistics.EffectiveSamples trace;
+
+		Chain(Condition evidence, List<Variable[]> pairs) {
+			this.evidence = evidence;
+			this.pairs = pairs;
+			for (Event e : evidence)
+				state.put(e.node.name, e.value.name);
+			for (String name : bn.nodes.keySet()) {
+				if (state.containsKey(name))
+					continue;
+				hidden.add(name);
+				Object[] tmp = bn.getNode(name).domain.keySet().toArray();
+				state.put(name, (String) tmp[r.nextInt(tmp.length)]);
+				counts.put(bn.getNode(name), new HashMap<String, Long>());
+				since.put(bn.getNode(name), 0);
+			}
+			pairSince = new int[pairs.size()];
+			for (int i = 0; i < pairs.size(); i++)
+				pairCounts.add(new HashMap<String, Long>());
+		}
+
+		/**
+		 * Trace the indicator of an event at every step, for its effective
+		 * sample size.
+		 */
+		void trace(Event event) {
+			tracked = event;
+			trace = new QueryStatistics.EffectiveSamples();
+		}
+
+		void run(int n) throws ValidationError {
+			for (int i = 0; i < burnIn && !hidden.isEmpty(); ++i) {
+				Variable var = bn.getNode(hidden.get(r.nextInt(hidden.size())));
+				state.put(var.name, getSample(var, state));
+			}
+			steps = hidden.isEmpty() ? 0 : n;
+			for (int i = 0; i < steps; ++i) {
+				Variable var = bn.getNode(hidden.get(r.nextInt(hidden.size())));
+				String old = state.get(var.name);
+				String newVal = getSample(var, state);
+				state.put(var.name, newVal);
+				if (trace != null)
+					trace.add(state.get(tracked.node.name).equals(tracked.value.name));
+				if (newVal.equals(old))
+					continue;
+				flips++;
+				add(counts.get(var), old, i - since.get(var));
+				since.put(var, i);
+				for (int j = 0; j < pairs.size(); j++)
+					if (pairs.get(j)[0] == var || pairs.get(j)[1] == var) {
+						add(pairCounts.get(j), key(j, var, old), i - pairSince[j]);
+						pairSince[j] = i;
+					}
+			}
+			// Count the current values up to the end.
+			for (Map.Entry<Variable, Map<String, Long>> ent : counts.entrySet())
+				add(ent.getValue(), state.get(ent.getKey().name), n - since.get(ent.getKey()));
+			for (int j = 0; j < pairs.size(); j++)
+				add(pairCounts.get(j), key(j, null, null), n - pairSince[j]);
+		}
+
+		/**
+		 * The key of the joint value of a pair, with the given variable at a
+		 * value other than its current one.
+		 */
+		private String key(int pair, Variable var, String value) {
+			Variable[] p = pairs.get(pair);
+			return (p[0] == var ? value : state.get(p[0].name)) + "," + (p[1] == var ? value : state.get(p[1].name));
+		}
+
+		private void add(Map<String, Long> count, String key, long n) {
+			Long c = count.get(key);
+			count.put(key, (c == null ? 0 : c) + n);
+		}
+
+		/**
+		 * The fraction of steps in the target values, checked against the
+		 * evidence for observed variables.
+		 */
+		double probability(Condition target) {
+			Variable[] vars = variables(target);
+			List<Event> hiddenEvents = new ArrayList<Event>();
+			for (Event e : target) {
+				Value observed = evidence.get(e.node);
+				if (observed == null)
+					hiddenEvents.add(e);
+				else if (observed != e.value)
+					return 0.0;
+			}
+			if (hiddenEvents.isEmpty() || steps == 0)
+				return hiddenEvents.isEmpty() ? 1.0 : 0.0;
+			if (hiddenEvents.size() == 1) {
+				Long c = counts.get(hiddenEvents.get(0).node).get(hiddenEvents.get(0).value.name);
+				return c == null ? 0.0 : (double) c / steps;
+			}
+			for (int j = 0; j < pairs.size(); j++)
+				if (Arrays.equals(pairs.get(j), vars)) {
+					Long c = pairCounts.get(j).get(target.get(vars[0]).name + "," + target.get(vars[1]).name);
+					return c == null ? 0.0 : (double) c / steps;
+				}
+			return 0.0;
+		}
 	}
 }
@@ -0,0 +1,206 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import BayesianNetwork.*;
+
+/**
+ * Mini-bucket elimination, bounding P(evidence) and posteriors in bounded
+ * memory when the elimination of a query makes factors too large.
+ *
+ * Variables are eliminated in the greedy order, but the factors mentioning a
+ * variable (its bucket) are only joined in mini-buckets spanning at most
+ * iBound variables. The variable is summed out of the first mini-bucket, and
+ * maxed out of the others for an upper bound, or minned out for a lower
+ * bound, since for non negative factors
+ *       SUM_x f(x) g(x) <= SUM_x f(x) * MAX_x g(x)
+ * and the same holds with MIN for >=. A bucket fitting in the bound is
+ * eliminated exactly, so with a large enough bound both bounds are equal to
+ * the exact probability.
+ *
+ * The bounds need factors without negative entries, so noisy-MAX nodes are
+ * divorced into chains of small conditional distributions rather than
+ * decomposed (see Factor.nonNegativeFactorsOf), and are never expanded to
+ * their full table.
+ */
+public class MiniBucketElimination implements Inference {
+
+	BayesianNetwork network;
+	int iBound;
+
+	/**
+	 * A lower and upper bound of a probability.
+	 */
+	public static class Bounds {
+		public final double lower;
+		public final double upper;
+
+		Bounds(double lower, double upper) {
+			this.lower = lower;
+			this.upper = upper;
+		}
+
+		public String toString() {
+			return String.format("[%.6f, %.6f]", lower, upper);
+		}
+	}
+
+	/**
+	 * @param iBound
+	 *            - the largest number of variables of a factor made by the
+	 *            elimination, unless a single table is larger.
+	 */
+	public MiniBucketElimination(BayesianNetwork network, int iBound) {
+		this.network = network;
+		this.iBound = iBound;
+	}
+
+	/**
+	 * @param query
+	 *            - a String in the format "A = a1 | B = b2, C = c1", the
+	 *            spacing is not important.
+	 * @return - the bounds of the posterior, like "[0.41, 0.44]".
+	 */
+	@Override
+	public String ask(String query) {
+		String[] q = query.split("\\|");
+		Event target = network.parseEvent(q[0]);
+		Condition evidence = network.parseCondition(q.length > 1 ? q[1] : "");
+		return posterior(target, evidence).toString();
+	}
+
+	/**
+	 * Bounds of P(evidence).
+	 */
+	public Bounds evidence(Condition evidence) {
+		List<Factor> factors = factors(evidence);
+		List<Variable> none = Collections.emptyList();
+		List<Variable> order = VariableElimination.order(factors, none);
+		return new Bounds(eliminate(factors, order, false), eliminate(factors, order, true));
+	}
+
+	/**
+	 * Bounds of P(target | evidence), from the bounds of P(x, evidence) for
+	 * each value x of the target:
+	 *       P(x | e) = P(x, e) / (P(x, e) + SUM_OVER x' != x: P(x', e))
+	 * grows with the first term and decreases with the others.
+	 */
+	public Bounds posterior(Event target, Condition evidence) {
+		Value observed = evidence.get(target.node);
+		if (observed != null)
+			return observed == target.value ? new Bounds(1.0, 1.0) : new Bounds(0.0, 0.0);
+
+		double lower = 0.0, upper = 0.0, othersLower = 0.0, othersUpper = 0.0;
+		for (Value v : target.node.domain.values()) {
+			List<Event> events = new ArrayList<Event>();
+			for (Event e : evidence)
+				events.add(e);
+			events.add(new Event(target.node, v));
+			Bounds b = evidence(new Condition(events));
+			if (v == target.value) {
+				lower = b.lower;
+				upper = b.upper;
+			} else {
+				othersLower += b.lower;
+				othersUpper += b.upper;
+			}
+		}
+		return new Bounds(lower + othersUpper > 0 ? lower / (lower + othersUpper) : 0.0,
+				upper + othersLower > 0 ? upper / (upper + othersLower) : 1.0);
+	}
+
+	/**
+	 * The factors of the evidence variables and their ancestors, from one
+	 * version of the network, the others summing to 1.
+	 */
+	private List<Factor> factors(Condition evidence) {
+		List<Variable> none = Collections.emptyList();
+		Set<Variable> relevant = VariableElimination.relevant(none, evidence);
+		while (true) {
+			long version = network.stableVersion();
+			List<Factor> factors = new ArrayList<Factor>();
+			try {
+				for (Variable v : network.nodes.values())
+					if (relevant.contains(v))
+						factors.addAll(Factor.nonNegativeFactorsOf(network, v, evidence));
+			} catch (RuntimeException e) {
+				// a family read in the middle of an update is retried, as in VariableElimination
+				if (network.version() == version)
+					throw e;
+				continue;
+			}
+			if (network.version() == version)
+				return factors;
+		}
+	}
+
+	/**
+	 * Eliminate all variables in order by mini-buckets, bounding from above
+	 * or below, and return the product of what remains.
+	 */
+	double eliminate(List<Factor> factors, List<Variable> order, boolean upper) {
+		factors = new ArrayList<Factor>(factors);
+		for (Variable next : order) {
+			List<Factor> bucket = new ArrayList<Factor>();
+			for (Iterator<Factor> it = factors.iterator(); it.hasNext();) {
+				Factor f = it.next();
+				if (f.variables.contains(next)) {
+					bucket.add(f);
+					it.remove();
+				}
+			}
+			boolean first = true;
+			for (Factor mini : partition(bucket)) {
+				if (first)
+					mini.eliminate(next);
+				else if (upper)
+					mini.maximise(next);
+				else
+					mini.minimise(next);
+				first = false;
+				factors.add(mini);
+			}
+		}
+		double ret = 1.0;
+		for (Factor f : factors)
+			for (double d : f.p.values())
+				ret *= d;
+		return ret;
+	}
+
+	/**
+	 * Join the factors of a bucket into mini-buckets of at most iBound
+	 * variables, placing the largest factors first, each in the first
+	 * mini-bucket it fits in.
+	 */
+	List<Factor> partition(List<Factor> bucket) {
+		Collections.sort(bucket, new Comparator<Factor>() {
+			public int compare(Factor a, Factor b) {
+				return b.variables.size() - a.variables.size();
+			}
+		});
+		List<Factor> minis = new ArrayList<Factor>();
+		List<Set<Variable>> scopes = new ArrayList<Set<Variable>>();
+		for (Factor f : bucket) {
+			int i = 0;
+			for (; i < minis.size(); i++) {
+				Set<Variable> scope = new HashSet<Variable>(scopes.get(i));
+				scope.addAll(f.variables);
+				if (scope.size() <= iBound)
+					break;
+			}
+			if (i == minis.size()) {
+				minis.add(f.copy());
+				scopes.add(new HashSet<Variable>(f.variables));
+			} else {
+				minis.set(i, minis.get(i).join(f));
+				scopes.get(i).addAll(f.variables);
+			}
+		}
+		return minis;
+	}
+}
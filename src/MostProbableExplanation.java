@@ -0,0 +1,284 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import BayesianNetwork.*;
+
+/**
+ * Most probable explanation (MPE) and maximum a posteriori (MAP) queries by
+ * max-product variable elimination.
+ *
+ * The query string lists the variables to explain on the left of |, or
+ * nothing (or "*") for every variable but the evidence:
+ *                       A, B | C = c1, D = d2
+ * and the answer is their most probable assignment with its posterior
+ * probability, like "A = a1, B = b2: 0.123456".
+ *
+ * Other variables are summed out first, then the queried ones are maxed out
+ * keeping, for each of them, the value reaching the maximum for each
+ * configuration of the remaining variables. Going back through these
+ * tracebacks in reverse order recovers the assignment.
+ *
+ * Summing before maxing constrains the elimination order and may create large
+ * factors for MAP queries. When the largest factor would exceed the limit,
+ * the order is left free instead, which gives an upper bound of the MAP
+ * probability, and the MAP part of the MPE assignment is returned with its
+ * exact probability as a lower bound.
+ */
+public class MostProbableExplanation implements Inference {
+
+	BayesianNetwork network;
+	VariableElimination ve;
+	long limit;
+
+	/**
+	 * The answer to a query, the assignment and bounds of its posterior
+	 * probability, which are equal when the answer is exact.
+	 */
+	public static class Explanation {
+		public final Condition assignment;
+		public final double probability;
+		public final double upper;
+
+		Explanation(Condition assignment, double probability, double upper) {
+			this.assignment = assignment;
+			this.probability = probability;
+			this.upper = upper;
+		}
+
+		public boolean exact() {
+			return probability >= upper;
+		}
+
+		public String toString() {
+			List<String> events = new ArrayList<String>();
+			for (Event e : assignment)
+				events.add(e.toString());
+			String ret = common.join(", ", events) + String.format(": %.6f", probability);
+			if (!exact())
+				ret += String.format(" (<= %.6f)", upper);
+			return ret;
+		}
+	}
+
+	public MostProbableExplanation(BayesianNetwork network) {
+		this(network, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param limit - the largest factor size allowed for an exact MAP answer.
+	 */
+	public MostProbableExplanation(BayesianNetwork network, long limit) {
+		this.network = network;
+		this.limit = limit;
+		ve = new VariableElimination(network);
+	}
+
+	/**
+	 * @param query
+	 *            - a String in the format "A, B | C = c1, D = d2", the spacing
+	 *            is not important.
+	 * @return - the assignment and its probability in string.
+	 */
+	@Override
+	public String ask(String query) {
+		String[] q = query.replaceAll("\\s+", "").split("\\|");
+		Condition evidence = network.parseCondition(q.length > 1 ? q[1] : "");
+
+		List<Variable> explained = new ArrayList<Variable>();
+		if (q.length == 0 || q[0].isEmpty() || q[0].equals("*")) {
+			for (Variable v : network.nodes.values())
+				if (!evidence.mention(v))
+					explained.add(v);
+		} else {
+			for (String name : q[0].split(","))
+				explained.add(network.getNode(name));
+		}
+		return explain(explained, evidence).toString();
+	}
+
+	/**
+	 * The most probable assignment of the explained variables given evidence.
+	 */
+	public Explanation explain(Collection<Variable> explained, Condition evidence) {
+		List<Factor> factors = ve.factors(evidence);
+		double pe = evidence(factors);
+
+		// Variables introduced by decomposition must be summed before anything
+		// is maxed, as their factors are not probabilities, but they can be
+		// summed along with the other summed variables.
+		Set<Variable> hidden = new HashSet<Variable>();
+		for (Factor f : factors)
+			hidden.addAll(f.variables);
+		Set<Variable> aux = new HashSet<Variable>(hidden);
+		aux.removeAll(network.nodes.values());
+		Set<Variable> summed = new HashSet<Variable>(hidden);
+		summed.removeAll(explained);
+		summed.removeAll(aux);
+		Set<Variable> maxed = new HashSet<Variable>(hidden);
+		maxed.retainAll(explained);
+
+		Set<Variable> sums = new HashSet<Variable>(summed);
+		sums.addAll(aux);
+		List<Set<Variable>> scopes = VariableElimination.scopes(factors);
+		List<Variable> order = new ArrayList<Variable>(VariableElimination.plan(scopes, sums));
+		order.addAll(VariableElimination.plan(scopes, maxed));
+
+		if (summed.isEmpty() || VariableElimination.largest(factors, order) <= limit) {
+			Condition assignment = decode(factors, order, maxed);
+			double p = joint(assignment, evidence) / pe;
+			return new Explanation(assignment, p, p);
+		}
+
+		// Free order of the summed and maxed variables, the decomposition
+		// still summed before any max: an upper bound, and the MAP part of the
+		// MPE as answer.
+		Set<Variable> rest = new HashSet<Variable>(summed);
+		rest.addAll(maxed);
+		Set<Variable> all = new HashSet<Variable>(rest);
+		all.addAll(aux);
+		order = plan(VariableElimination.scopes(factors), all, aux, maxed);
+		double upper = value(eliminate(factors, order, maxed, null)) / pe;
+
+		// every variable of rest is maxed when decoding
+		order = plan(VariableElimination.scopes(factors), all, aux, rest);
+		List<Event> events = new ArrayList<Event>();
+		for (Event e : decode(factors, order, rest))
+			if (maxed.contains(e.node))
+				events.add(e);
+		Condition assignment = new Condition(events);
+		return new Explanation(assignment, joint(assignment, evidence) / pe, upper);
+	}
+
+	/**
+	 * Greedily order the given variables as VariableElimination.plan does,
+	 * except that the later ones are only chosen once none of the earlier
+	 * ones remain.
+	 */
+	static List<Variable> plan(List<Set<Variable>> scopes, Collection<Variable> eliminate, Set<Variable> earlier,
+			Set<Variable> later) {
+		Set<Variable> hidden = new LinkedHashSet<Variable>(eliminate);
+		Set<Variable> waiting = new HashSet<Variable>(earlier);
+		waiting.retainAll(hidden);
+		List<Variable> order = new ArrayList<Variable>();
+		while (!hidden.isEmpty()) {
+			Variable next = null;
+			long best = Long.MAX_VALUE;
+			for (Variable v : hidden) {
+				if (!waiting.isEmpty() && later.contains(v))
+					continue;
+				long size = VariableElimination.size(VariableElimination.join(v, scopes));
+				if (next == null || size < best) {
+					best = size;
+					next = v;
+				}
+			}
+			VariableElimination.eliminate(next, scopes);
+			hidden.remove(next);
+			waiting.remove(next);
+			order.add(next);
+		}
+		return order;
+	}
+
+	/**
+	 * Eliminate in order, maxing out the given variables and summing out the
+	 * others, and return the remaining factors.
+	 *
+	 * @param tracebacks
+	 *            - if not null, receives the traceback of each maxed variable
+	 *            in order of elimination.
+	 */
+	static List<Factor> eliminate(List<Factor> factors, List<Variable> order, Set<Variable> maxed,
+			List<Traceback> tracebacks) {
+		factors = new ArrayList<Factor>(factors);
+		for (Variable next : order) {
+			Factor temp = VariableElimination.extract(next, factors);
+			if (temp == null)
+				continue;
+			if (maxed.contains(next)) {
+				Map<Condition, Value> argmax = temp.maximise(next);
+				if (tracebacks != null)
+					tracebacks.add(new Traceback(next, temp.variables, argmax));
+			} else {
+				temp.eliminate(next);
+			}
+			factors.add(temp);
+		}
+		return factors;
+	}
+
+	/**
+	 * The best value of a maxed variable for each configuration of the
+	 * variables still in its factor when it was maxed out.
+	 */
+	static class Traceback {
+		Variable var;
+		List<Variable> scope;
+		Map<Condition, Value> argmax;
+
+		Traceback(Variable var, List<Variable> scope, Map<Condition, Value> argmax) {
+			this.var = var;
+			this.scope = new ArrayList<Variable>(scope);
+			this.argmax = argmax;
+		}
+	}
+
+	/**
+	 * Eliminate in order and recover the assignment of the maxed variables,
+	 * which must be eliminated after all summed variables.
+	 */
+	private Condition decode(List<Factor> factors, List<Variable> order, Set<Variable> maxed) {
+		List<Traceback> tracebacks = new ArrayList<Traceback>();
+		eliminate(factors, order, maxed, tracebacks);
+
+		List<Event> assignment = new ArrayList<Event>();
+		Collections.reverse(tracebacks);
+		for (Traceback t : tracebacks) {
+			List<Event> key = new ArrayList<Event>();
+			for (Event e : assignment)
+				if (t.scope.contains(e.node))
+					key.add(e);
+			assignment.add(new Event(t.var, t.argmax.get(new Condition(key))));
+		}
+		return new Condition(assignment);
+	}
+
+	/**
+	 * P(assignment, evidence) by summing out everything else.
+	 */
+	private double joint(Condition assignment, Condition evidence) {
+		List<Event> events = new ArrayList<Event>();
+		for (Event e : evidence)
+			events.add(e);
+		for (Event e : assignment)
+			events.add(e);
+		List<Variable> none = Collections.emptyList();
+		return value(Arrays.asList(ve.eliminate(none, new Condition(events))));
+	}
+
+	/**
+	 * P(evidence) from the factors made with it.
+	 */
+	private static double evidence(List<Factor> factors) {
+		List<Variable> none = Collections.emptyList();
+		return value(VariableElimination.sumOut(factors, VariableElimination.order(factors, none)));
+	}
+
+	/**
+	 * The product of factors over no variable.
+	 */
+	private static double value(List<Factor> factors) {
+		double ret = 1.0;
+		for (Factor f : factors)
+			for (Double d : f.p.values())
+				ret *= d;
+		return ret;
+	}
+}
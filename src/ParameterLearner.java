@@ -0,0 +1,189 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import BayesianNetwork.*;
+
+/**
+ * Parameter learning of the probability tables of a network with a fixed
+ * structure, from a complete dataset.
+ *
+ * The dataset is streamed by a RecordReader, each thread counting the
+ * occurrences of every family configuration (a variable with its parents) in
+ * its own primitive arrays, which are merged once the file is read. The
+ * probability tables are then replaced by
+ *
+ *         P(x | u) = (N(x, u) + prior) / (N(u) + prior * |X|)
+ *
+ * which is the maximum likelihood estimate when prior is 0, and the MAP
+ * estimate under a Dirichlet prior of prior + 1 per entry otherwise. Parent
+ * configurations never seen with no prior get a uniform distribution.
+ *
+ * Records with missing values are only counted in the families they fully
+ * observe. Variables with a parametric distribution are left untouched.
+ */
+public class ParameterLearner {
+
+	BayesianNetwork network;
+	List<Variable> variables;
+	double prior;
+	int nThreads;
+
+	int[] card; // domain size of each variable
+	int[][] parents; // indexes of the parents of each variable
+	boolean[] learnt; // whether the table of each variable is learnt, parametric ones are not
+
+	public ParameterLearner(BayesianNetwork network, double prior, int nThreads) {
+		if (prior < 0)
+			throw new ValidationError("Negative prior " + prior + ".");
+		this.network = network;
+		this.prior = prior;
+		this.nThreads = Math.max(1, nThreads);
+
+		variables = new ArrayList<Variable>(network.nodes.values());
+		card = new int[variables.size()];
+		parents = new int[variables.size()][];
+		learnt = new boolean[variables.size()];
+		for (int i = 0; i < card.length; i++) {
+			Variable v = variables.get(i);
+			card[i] = v.domain.size();
+			parents[i] = new int[v.parents.size()];
+			for (int j = 0; j < parents[i].length; j++)
+				parents[i][j] = variables.indexOf(v.parents.get(j));
+			learnt[i] = network.distribution(v) == null;
+		}
+		for (int i = 0; i < card.length; i++)
+			if (learnt[i])
+				tableSize(i); // fail now on tables too large to count
+	}
+
+	public ParameterLearner(BayesianNetwork network, double prior) {
+		this(network, prior, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Learn the probability tables from a CSV file, see RecordReader.
+	 */
+	public void learnCsv(File file) throws IOException {
+		List<Counter> counters = counters();
+		new RecordReader(network).readCsv(file, counters);
+		update(merge(counters));
+	}
+
+	/**
+	 * Learn the probability tables from a binary file, see RecordReader.
+	 */
+	public void learnBinary(File file) throws IOException {
+		List<Counter> counters = counters();
+		new RecordReader(network).readBinary(file, counters);
+		update(merge(counters));
+	}
+
+	private List<Counter> counters() {
+		List<Counter> ret = new ArrayList<Counter>();
+		for (int i = 0; i < nThreads; i++)
+			ret.add(new Counter());
+		return ret;
+	}
+
+	/**
+	 * Number of entries in the probability table of a variable.
+	 */
+	int tableSize(int var) {
+		long size = card[var];
+		for (int p : parents[var]) {
+			size *= card[p];
+			if (size > Integer.MAX_VALUE)
+				throw new ValidationError("The table of <" + variables.get(var).name + "> is too large to learn.");
+		}
+		return (int) size;
+	}
+
+	/**
+	 * Index of the family configuration of a variable in a record, the first
+	 * parent being the most significant digit and the variable the least, as
+	 * ordered by Variable.allConditions. MISSING if not fully observed.
+	 */
+	int familyIndex(int var, int[] record) {
+		if (record[var] == RecordReader.MISSING)
+			return RecordReader.MISSING;
+		int index = 0;
+		for (int p : parents[var]) {
+			if (record[p] == RecordReader.MISSING)
+				return RecordReader.MISSING;
+			index = index * card[p] + record[p];
+		}
+		return index * card[var] + record[var];
+	}
+
+	/**
+	 * Counts of the family configurations of the records of one thread, null
+	 * for the variables whose table is not learnt.
+	 */
+	class Counter implements RecordReader.Sink {
+		long[][] counts;
+
+		Counter() {
+			counts = new long[variables.size()][];
+			for (int i = 0; i < counts.length; i++)
+				if (learnt[i])
+					counts[i] = new long[tableSize(i)];
+		}
+
+		@Override
+		public void add(int[] record) {
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] == null)
+					continue;
+				int index = familyIndex(i, record);
+				if (index != RecordReader.MISSING)
+					counts[i][index]++;
+			}
+		}
+	}
+
+	private double[][] merge(List<Counter> counters) {
+		double[][] ret = new double[variables.size()][];
+		for (int i = 0; i < ret.length; i++) {
+			if (!learnt[i])
+				continue;
+			ret[i] = new double[tableSize(i)];
+			for (Counter c : counters)
+				for (int j = 0; j < ret[i].length; j++)
+					ret[i][j] += c.counts[i][j];
+		}
+		return ret;
+	}
+
+	/**
+	 * Replace the probability tables by the normalised (expected) counts,
+	 * indexed as in familyIndex, null for the tables not learnt. Each table
+	 * is swapped in as a whole.
+	 */
+	void update(double[][] counts) {
+		for (int i = 0; i < variables.size(); i++) {
+			Variable v = variables.get(i);
+			if (counts[i] == null)
+				continue;
+
+			List<Variable> family = new ArrayList<Variable>(v.parents);
+			family.add(v);
+			List<Condition> conditions = Variable.allConditions(family);
+
+			Map<Condition, Double> table = new HashMap<Condition, Double>();
+			for (int row = 0; row < counts[i].length; row += card[i]) {
+				double total = 0.0;
+				for (int k = 0; k < card[i]; k++)
+					total += counts[i][row + k] + prior;
+				for (int k = 0; k < card[i]; k++) {
+					double p = total > 0 ? (counts[i][row + k] + prior) / total : 1.0 / card[i];
+					table.put(conditions.get(row + k), p);
+				}
+			}
+			network.setProbabilities(v, table);
+		}
+	}
+}
@@ -0,0 +1,219 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import BayesianNetwork.*;
+
+/**
+ * Approximate forward filtering of a dynamic Bayesian network by a particle
+ * filter, for networks whose interface is too large for ForwardFilter.
+ *
+ * Each particle is a value of every variable of the current slice. Advancing
+ * one slice samples the unobserved variables of each particle from the
+ * transition network given its previous values, and multiplies its weight by
+ * the probability of the observed ones (likelihood weighting). When the
+ * effective number of particles
+ *       1 / SUM_OVER particles: weight^2
+ * falls below a fraction of their number, they are resampled in proportion
+ * to their weights (systematic resampling) and the weights are reset.
+ *
+ * The distributions are compiled to flat arrays, and the particles are kept
+ * in two buffers swapped at each slice, so a step allocates nothing.
+ */
+public class ParticleFilter implements Filter {
+
+	DynamicBayesianNetwork dbn;
+	List<String> slice;
+	int nParticles;
+	double threshold = 0.5;
+	Random r = new Random();
+
+	Table[] priors, transitions;
+	int[][] particles, buffer;
+	double[] weights;
+	int time;
+	double logLikelihood;
+
+	/**
+	 * The distribution of a variable as a flat array, with the index of the
+	 * row of each parent value.
+	 */
+	static class Table {
+		int var;
+		int nValues;
+		int[] parents;
+		boolean[] previous;
+		int[] strides;
+		double[] p;
+
+		Table(Variable v, List<String> slice) {
+			var = slice.indexOf(v.name);
+			nValues = v.domain.size();
+			parents = new int[v.parents.size()];
+			previous = new boolean[parents.length];
+			strides = new int[parents.length];
+			int stride = 1;
+			for (int i = parents.length - 1; i >= 0; i--) {
+				String name = v.parents.get(i).name;
+				previous[i] = name.endsWith(DynamicBayesianNetwork.PREVIOUS);
+				if (previous[i])
+					name = name.substring(0, name.length() - DynamicBayesianNetwork.PREVIOUS.length());
+				parents[i] = slice.indexOf(name);
+				strides[i] = stride;
+				stride *= v.parents.get(i).domain.size();
+			}
+
+			// the variable is the least significant digit, as in Variable.allConditions
+			List<Variable> family = new ArrayList<Variable>(v.parents);
+			family.add(v);
+			List<Condition> conditions = Variable.allConditions(family);
+			p = new double[conditions.size()];
+			for (int i = 0; i < p.length; i++)
+				p[i] = v.getProbability(conditions.get(i));
+		}
+
+		/**
+		 * The offset of the distribution given the parents.
+		 */
+		int row(int[] current, int[] last) {
+			int row = 0;
+			for (int i = 0; i < parents.length; i++)
+				row += strides[i] * (previous[i] ? last[parents[i]] : current[parents[i]]);
+			return row * nValues;
+		}
+	}
+
+	public ParticleFilter(DynamicBayesianNetwork dbn, int nParticles) {
+		dbn.validate();
+		this.dbn = dbn;
+		this.nParticles = nParticles;
+		slice = dbn.slice();
+		priors = compile(dbn.prior);
+		transitions = compile(dbn.transition);
+		particles = new int[nParticles][slice.size()];
+		buffer = new int[nParticles][slice.size()];
+		weights = new double[nParticles];
+	}
+
+	/**
+	 * Resample when the effective number of particles falls below this
+	 * fraction of their number, 0.5 by default.
+	 */
+	public void setThreshold(double threshold) {
+		this.threshold = threshold;
+	}
+
+	@Override
+	public double step(int[] observation) {
+		Table[] tables = time == 0 ? priors : transitions;
+		double total = 0.0;
+		for (int n = 0; n < nParticles; n++) {
+			int[] current = buffer[n], last = particles[n];
+			double w = 1.0;
+			for (Table t : tables) {
+				int row = t.row(current, last);
+				int observed = observation[t.var];
+				if (observed != RecordReader.MISSING) {
+					w *= t.p[row + observed];
+					current[t.var] = observed;
+				} else
+					current[t.var] = draw(t.p, row, t.nValues);
+			}
+			weights[n] = (time == 0 ? 1.0 / nParticles : weights[n]) * w;
+			total += weights[n];
+		}
+		if (total <= 0)
+			throw new RuntimeException("No particle agrees with the observation at time " + time + ".");
+
+		int[][] swap = particles;
+		particles = buffer;
+		buffer = swap;
+		double squares = 0.0;
+		for (int n = 0; n < nParticles; n++) {
+			weights[n] /= total;
+			squares += weights[n] * weights[n];
+		}
+		if (1.0 / squares < threshold * nParticles)
+			resample();
+		time++;
+		logLikelihood += Math.log(total);
+		return Math.log(total);
+	}
+
+	/**
+	 * Systematic resampling: one uniform offset, then particles at regular
+	 * steps of the cumulative weights.
+	 */
+	private void resample() {
+		double u = r.nextDouble() / nParticles, cumulative = weights[0];
+		for (int n = 0, k = 0; n < nParticles; n++, u += 1.0 / nParticles) {
+			while (u > cumulative && k < nParticles - 1)
+				cumulative += weights[++k];
+			System.arraycopy(particles[k], 0, buffer[n], 0, slice.size());
+		}
+		int[][] swap = particles;
+		particles = buffer;
+		buffer = swap;
+		for (int n = 0; n < nParticles; n++)
+			weights[n] = 1.0 / nParticles;
+	}
+
+	@Override
+	public Map<String, Double> posterior(String name) {
+		int var = slice.indexOf(name);
+		if (var < 0)
+			throw new ValidationError("No such variable <" + name + ">.");
+		Variable v = dbn.prior.getNode(name);
+		double[] p = new double[v.domain.size()];
+		for (int n = 0; n < nParticles; n++)
+			p[particles[n][var]] += weights[n];
+		Map<String, Double> ret = new LinkedHashMap<String, Double>();
+		int k = 0;
+		for (String value : v.domain.keySet())
+			ret.put(value, p[k++]);
+		return ret;
+	}
+
+	@Override
+	public int time() {
+		return time;
+	}
+
+	/**
+	 * The estimated log probability of all observations so far.
+	 */
+	public double logLikelihood() {
+		return logLikelihood;
+	}
+
+	/**
+	 * Forget all observations.
+	 */
+	public void reset() {
+		time = 0;
+		logLikelihood = 0.0;
+	}
+
+	/**
+	 * The tables of the variables of a slice in topological order.
+	 */
+	private Table[] compile(BayesianNetwork network) {
+		List<Table> ret = new ArrayList<Table>();
+		for (Variable v : network.nodes.values())
+			if (slice.contains(v.name))
+				ret.add(new Table(v, slice));
+		return ret.toArray(new Table[0]);
+	}
+
+	private int draw(double[] p, int offset, int n) {
+		double u = r.nextDouble();
+		for (int k = 0; k < n; k++) {
+			u -= p[offset + k];
+			if (u < 0)
+				return k;
+		}
+		return n - 1;
+	}
+}
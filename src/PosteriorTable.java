@@ -0,0 +1,243 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import BayesianNetwork.*;
+
+/**
+ * The posterior distribution of a target for every combination of values of
+ * a fixed set of evidence variables, precomputed so that answering is one
+ * array lookup.
+ *
+ * The combinations are numbered by their mixed radix code, the first
+ * evidence variable being the most significant digit, and the table holds
+ * the probability of each target value after the other, so that
+ *       table[code * nValues + value] = P(target = value | evidence code)
+ * Impossible combinations hold NaN.
+ *
+ * The table is computed by junction trees, one per thread, each going
+ * through a range of consecutive codes: most steps only change the last
+ * evidence variable, so the trees only recompute the messages depending on
+ * it. The table is a snapshot of one version of the network: it is computed
+ * again if the network is updated meanwhile, and does not follow later
+ * updates. It can be saved and loaded without the network.
+ */
+public class PosteriorTable {
+
+	static final int MAGIC = 0x424e5054; // "BNPT"
+
+	public final String target;
+	public final String[] targetValues;
+	public final String[] evidence;
+	public final String[][] evidenceValues;
+	final int[] radix;
+	final double[] table;
+
+	PosteriorTable(String target, String[] targetValues, String[] evidence, String[][] evidenceValues,
+			double[] table) {
+		this.target = target;
+		this.targetValues = targetValues;
+		this.evidence = evidence;
+		this.evidenceValues = evidenceValues;
+		this.table = table;
+		radix = new int[evidence.length];
+		for (int i = 0; i < radix.length; i++)
+			radix[i] = evidenceValues[i].length;
+	}
+
+	/**
+	 * Compute the table of a target given some evidence variables.
+	 */
+	public static PosteriorTable compute(final BayesianNetwork network, String target, String[] evidence,
+			int nThreads) {
+		final Variable t = network.getNode(target);
+		final List<Variable> observed = new ArrayList<Variable>();
+		String[][] evidenceValues = new String[evidence.length][];
+		for (int i = 0; i < evidence.length; i++) {
+			Variable v = network.getNode(evidence[i]);
+			if (v == t || observed.contains(v))
+				throw new ValidationError("The variable <" + v.name + "> is repeated.");
+			observed.add(v);
+			evidenceValues[i] = v.domain.keySet().toArray(new String[0]);
+		}
+		List<Variable> all = new ArrayList<Variable>(observed);
+		all.add(t);
+		if (VariableElimination.size(all) > Integer.MAX_VALUE)
+			throw new ValidationError("Too many combinations of " + Arrays.toString(evidence) + ".");
+		List<Value> values = new ArrayList<Value>(t.domain.values());
+		List<Condition> conditions = Variable.allConditions(observed);
+
+		double[] table;
+		long version;
+		do {
+			version = network.stableVersion();
+			table = fill(network, t, values, conditions, nThreads);
+		} while (network.version() != version);
+		return new PosteriorTable(t.name, t.domain.keySet().toArray(new String[0]), evidence.clone(),
+				evidenceValues, table);
+	}
+
+	/**
+	 * Compute the posteriors of the target for every evidence combination,
+	 * splitting the codes evenly between threads.
+	 */
+	private static double[] fill(final BayesianNetwork network, final Variable t, final List<Value> values,
+			final List<Condition> conditions, int nThreads) {
+		final double[] table = new double[conditions.size() * values.size()];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < nThreads; i++) {
+			final int from = (int) ((long) conditions.size() * i / nThreads);
+			final int to = (int) ((long) conditions.size() * (i + 1) / nThreads);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					if (from == to)
+						return null;
+					JunctionTree tree = new JunctionTree(network);
+					for (int code = from; code < to; code++) {
+						Factor f = tree.marginal(t, conditions.get(code));
+						for (int k = 0; k < values.size(); k++) {
+							Double p = f.get(new Condition(new ArrayList<Event>(Arrays.asList(new Event(t, values.get(k))))));
+							table[code * values.size() + k] = p == null ? Double.NaN : p;
+						}
+					}
+					return null;
+				}
+			});
+		}
+		run(tasks, nThreads);
+		return table;
+	}
+
+	/**
+	 * The code of a combination of evidence values, given by their index in
+	 * the domain of each evidence variable in order.
+	 */
+	public int code(int... values) {
+		int ret = 0;
+		for (int i = 0; i < radix.length; i++)
+			ret = ret * radix[i] + values[i];
+		return ret;
+	}
+
+	/**
+	 * P(target = value | evidence code), NaN if the evidence is impossible.
+	 */
+	public double probability(int code, int value) {
+		return table[code * targetValues.length + value];
+	}
+
+	/**
+	 * The posterior of the target given the evidence values, by index.
+	 */
+	public double[] posterior(int... values) {
+		int offset = code(values) * targetValues.length;
+		return Arrays.copyOfRange(table, offset, offset + targetValues.length);
+	}
+
+	/**
+	 * The number of evidence combinations.
+	 */
+	public int size() {
+		return table.length / targetValues.length;
+	}
+
+	/**
+	 * Write the table in a binary form: the names of the target, the
+	 * evidence variables and their values, then the probabilities. The file
+	 * is replaced atomically.
+	 */
+	public void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeUTF(target);
+			writeNames(out, targetValues);
+			writeNames(out, evidence);
+			for (String[] names : evidenceValues)
+				writeNames(out, names);
+			out.writeInt(table.length);
+			for (double p : table)
+				out.writeDouble(p);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Read a table written by save.
+	 */
+	public static PosteriorTable load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new ValidationError("Not a posterior table: " + file + ".");
+			String target = in.readUTF();
+			String[] targetValues = readNames(in);
+			String[] evidence = readNames(in);
+			String[][] evidenceValues = new String[evidence.length][];
+			long size = targetValues.length;
+			for (int i = 0; i < evidence.length; i++) {
+				evidenceValues[i] = readNames(in);
+				size *= evidenceValues[i].length;
+			}
+			double[] table = new double[in.readInt()];
+			if (table.length != size)
+				throw new ValidationError("Expected " + size + " probabilities, found " + table.length + ".");
+			for (int i = 0; i < table.length; i++)
+				table[i] = in.readDouble();
+			return new PosteriorTable(target, targetValues, evidence, evidenceValues, table);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeNames(DataOutputStream out, String[] names) throws IOException {
+		out.writeInt(names.length);
+		for (String name : names)
+			out.writeUTF(name);
+	}
+
+	private static String[] readNames(DataInputStream in) throws IOException {
+		String[] ret = new String[in.readInt()];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = in.readUTF();
+		return ret;
+	}
+
+	/**
+	 * Run the tasks in parallel, rethrowing their failure.
+	 */
+	private static void run(List<Callable<Void>> tasks, int nThreads) {
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			for (Future<Void> f : pool.invokeAll(tasks))
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,252 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+
+import BayesianNetwork.*;
+
+/**
+ * A cost based planner choosing, for each query, the inference engine
+ * expected to answer it the fastest within the requested accuracy.
+ *
+ * The query graph is first pruned to the query, the evidence and their
+ * ancestors, then the cost of each engine is estimated:
+ *   - variable elimination: the entries of the factors joined in the greedy
+ *     order over the pruned graph, which grows with its induced width,
+ *   - junction tree: nothing more than a clique product when the messages
+ *     for the same evidence are cached, otherwise a calibration of the tree
+ *     compiled for the whole network, shared by the queries expected to
+ *     repeat the evidence,
+ *   - Gibbs sampling: the samples needed for the accuracy (a 95% confidence
+ *     interval of half width epsilon) times the work of a sample.
+ * Exact engines are only allowed if their largest factor fits in the memory
+ * limit, and sampling only if an accuracy is allowed (epsilon > 0).
+ *
+ * Units of work of each engine are converted to time with a rate learnt from
+ * the queries answered so far, and the last decisions are kept with their
+ * estimated and actual cost.
+ */
+public class QueryPlanner implements Inference {
+
+	public enum Engine { VE, JUNCTION_TREE, MCMC }
+
+	// Gibbs samples are correlated, assume this many per independent one.
+	static final double SAMPLE_INEFFICIENCY = 4.0;
+	static final int HISTORY = 100;
+
+	BayesianNetwork network;
+	double epsilon;
+	long memoryLimit;
+	VariableElimination ve;
+	JunctionTree jt; // compiled on first use
+	double sampleCost; // work of a Gibbs step
+	long sampleCostVersion = -1; // the network version it was computed at
+	Condition lastEvidence;
+	int repeats; // consecutive queries with the last evidence
+	double[] rate = { 1.0, 1.0, 1.0 }; // nanoseconds per unit of work of each engine
+	Deque<Decision> decisions = new ArrayDeque<Decision>();
+
+	/**
+	 * The engine chosen for a query, with the cost estimates (units of work)
+	 * of every engine, Double.POSITIVE_INFINITY when not allowed.
+	 */
+	public static class Decision {
+		public final String query;
+		public final Engine engine;
+		public final double[] estimates;
+		public final double predictedTime; // nanoseconds
+		public long actualTime;
+
+		// the query, as given and parsed
+		String var, observed;
+		Event target;
+		Condition evidence;
+
+		Decision(String query, Engine engine, double[] estimates, double predictedTime) {
+			this.query = query;
+			this.engine = engine;
+			this.estimates = estimates;
+			this.predictedTime = predictedTime;
+		}
+
+		public String toString() {
+			return String.format("%s -> %s (VE %.0f, JT %.0f, MCMC %.0f; predicted %.3fms, actual %.3fms)", query,
+					engine, estimates[0], estimates[1], estimates[2], predictedTime / 1e6, actualTime / 1e6);
+		}
+	}
+
+	/**
+	 * @param epsilon
+	 *            - the largest absolute error allowed, 0 for exact answers.
+	 * @param memoryLimit
+	 *            - the largest factor or clique size allowed for exact
+	 *            engines.
+	 */
+	public QueryPlanner(BayesianNetwork network, double epsilon, long memoryLimit) {
+		this.network = network;
+		this.epsilon = epsilon;
+		this.memoryLimit = memoryLimit;
+		ve = new VariableElimination(network);
+	}
+
+	/**
+	 * Exact answers only, without memory limit.
+	 */
+	public QueryPlanner(BayesianNetwork network) {
+		this(network, 0.0, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param query
+	 *            - a String in the format "A = a1 | B = b2, C = c1", the
+	 *            spacing is not important.
+	 * @return - the result value in string.
+	 */
+	@Override
+	public String ask(String query) {
+		return execute(plan(query));
+	}
+
+	/**
+	 * Choose the engine of a query, without answering it. The decision is
+	 * meant to be executed once, as the estimates count the query as asked.
+	 */
+	public Decision plan(String query) {
+		String[] q = query.split("\\|");
+		String observed = q.length > 1 ? q[1] : "";
+		Event target = network.parseEvent(q[0]);
+		Condition evidence = network.parseCondition(observed);
+
+		double[] estimates = estimate(target.node, evidence);
+		int best = -1;
+		for (int i = 0; i < estimates.length; i++)
+			if (estimates[i] != Double.POSITIVE_INFINITY
+					&& (best < 0 || estimates[i] * rate[i] < estimates[best] * rate[best]))
+				best = i;
+		if (best < 0)
+			throw new RuntimeException("No engine can answer " + query + " within the limits.");
+
+		Decision decision = new Decision(query.trim(), Engine.values()[best], estimates, estimates[best] * rate[best]);
+		decision.var = q[0];
+		decision.observed = observed;
+		decision.target = target;
+		decision.evidence = evidence;
+		return decision;
+	}
+
+	/**
+	 * Answer a query with the engine chosen by plan.
+	 */
+	public String execute(Decision decision) {
+		long time = System.nanoTime();
+		String ret;
+		switch (decision.engine) {
+		case VE:
+			ret = ve.ask(decision.var, decision.observed);
+			break;
+		case JUNCTION_TREE:
+			ret = junctionTree().ask(decision.var, decision.observed);
+			break;
+		default:
+			ret = new MarkovChainMonteCarlo(network, samples()).ask(decision.target, decision.evidence);
+		}
+		decision.actualTime = System.nanoTime() - time;
+		int engine = decision.engine.ordinal();
+		learn(engine, decision.estimates[engine], decision.actualTime);
+		record(decision);
+		return ret;
+	}
+
+	/**
+	 * The units of work of each engine for a query, in the order of Engine.
+	 */
+	public synchronized double[] estimate(Variable target, Condition evidence) {
+		double[] ret = new double[3];
+		List<Variable> query = Arrays.asList(target);
+
+		List<Factor> factors = ve.factors(evidence, query);
+		List<Set<Variable>> scopes = VariableElimination.scopes(factors);
+		long work = 0, largest = 1;
+		for (Factor f : factors)
+			work += f.p.size();
+		for (Variable v : VariableElimination.order(factors, query)) {
+			long size = VariableElimination.size(VariableElimination.eliminate(v, scopes));
+			work += size;
+			largest = Math.max(largest, size);
+		}
+		ret[0] = largest > memoryLimit ? Double.POSITIVE_INFINITY : work;
+
+		// Calibrating for new evidence pays off over the queries repeating it,
+		// assume as many more as have repeated it so far.
+		JunctionTree tree = junctionTree();
+		if (lastEvidence != null && evidence.equals(lastEvidence))
+			repeats++;
+		else
+			repeats = 0;
+		lastEvidence = evidence;
+		if (tree.largestClique() > memoryLimit)
+			ret[1] = Double.POSITIVE_INFINITY;
+		else if (tree.calibratedFor(evidence))
+			ret[1] = tree.largestClique();
+		else
+			ret[1] = tree.calibrationCost() / (repeats + 1.0) + tree.largestClique();
+
+		ret[2] = epsilon <= 0 ? Double.POSITIVE_INFINITY : (double) samples() * sampleCost();
+		return ret;
+	}
+
+	/**
+	 * Gibbs samples for a 95% confidence interval of half width epsilon in the
+	 * worst case p = 0.5.
+	 */
+	int samples() {
+		return (int) Math.min(Integer.MAX_VALUE, Math.ceil(SAMPLE_INEFFICIENCY * 1.96 * 1.96 * 0.25 / (epsilon * epsilon)));
+	}
+
+	/**
+	 * Average work of a Gibbs step: the values of the sampled variable times
+	 * the tables read in its Markov blanket. Computed again only once the
+	 * network is updated.
+	 */
+	synchronized double sampleCost() {
+		long v;
+		while ((v = network.stableVersion()) != sampleCostVersion) {
+			double work = 0;
+			for (Variable var : network.nodes.values())
+				work += var.domain.size() * (1 + var.children.size());
+			sampleCost = work / Math.max(1, network.nodes.size());
+			// kept only if no update happened while summing
+			sampleCostVersion = network.version() == v ? v : -1;
+		}
+		return sampleCost;
+	}
+
+	synchronized JunctionTree junctionTree() {
+		if (jt == null)
+			jt = new JunctionTree(network);
+		return jt;
+	}
+
+	/**
+	 * Move the rate of an engine towards the one observed.
+	 */
+	private synchronized void learn(int engine, double work, long time) {
+		if (work > 0)
+			rate[engine] = 0.8 * rate[engine] + 0.2 * (time / work);
+	}
+
+	private synchronized void record(Decision decision) {
+		decisions.addLast(decision);
+		if (decisions.size() > HISTORY)
+			decisions.removeFirst();
+	}
+
+	/**
+	 * The last decisions made, oldest first.
+	 */
+	public synchronized List<Decision> getDecisions() {
+		return new ArrayList<Decision>(decisions);
+	}
+}
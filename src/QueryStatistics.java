@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Statistics of a single query, filled by the inference method answering it.
+ * 
+ * Times are in nanoseconds, split by phase: parsing the query, planning
+ * (building factors and the elimination order, or the initial state of a
+ * chain) and computing the answer. Fields not relevant to a method keep their
+ * initial value.
+ */
+public class QueryStatistics {
+
+	public final String method;
+	public final String query;
+
+	public long parseTime;
+	public long planTime;
+	public long computeTime;
+
+	// Variable elimination
+	public List<String> eliminationOrder;
+	public long largestFactor;
+	public long multiplyAdds;
+	public int inducedWidth;
+
+	// Sampling
+	public long samples;
+	public double samplesPerSecond;
+	public double acceptanceRate;
+	public double effectiveSamples;
+
+	public QueryStatistics(String method, String query) {
+		this.method = method;
+		this.query = query;
+		eliminationOrder = new ArrayList<String>();
+	}
+
+	public long totalTime() {
+		return parseTime + planTime + computeTime;
+	}
+
+	/**
+	 * Effective sample size of a chain of 0/1 indicators by batch means,
+	 * added one step at a time in constant time and memory.
+	 * 
+	 * The steps are summed in at most BATCHES consecutive batches; when they
+	 * are all full, pairs are merged and the batches are twice as long, so
+	 * there are always between BATCHES / 2 and BATCHES of them. The variance
+	 * of the batch means times the batch length estimates the variance of the
+	 * chain mean times its length, including the correlation of the steps.
+	 */
+	public static class EffectiveSamples {
+		static final int BATCHES = 64;
+
+		long[] sums = new long[BATCHES]; // number of ones of each full batch
+		int batches;
+		long batchLength = 1;
+		long current, inBatch; // the batch being filled
+		long length, ones;
+
+		public void add(boolean x) {
+			length++;
+			if (x) {
+				ones++;
+				current++;
+			}
+			if (++inBatch < batchLength)
+				return;
+			sums[batches++] = current;
+			current = inBatch = 0;
+			if (batches == BATCHES) {
+				for (int i = 0; i < BATCHES / 2; i++)
+					sums[i] = sums[2 * i] + sums[2 * i + 1];
+				batches = BATCHES / 2;
+				batchLength *= 2;
+			}
+		}
+
+		public double value() {
+			double mean = (double) ones / Math.max(length, 1);
+			double variance = mean * (1 - mean);
+			if (batches < 2 || variance == 0)
+				return length;
+			double total = 0.0;
+			for (int i = 0; i < batches; i++)
+				total += sums[i];
+			double batchMean = total / batches, spread = 0.0;
+			for (int i = 0; i < batches; i++)
+				spread += (sums[i] - batchMean) * (sums[i] - batchMean);
+			// variance of the batch means, times the batch length
+			double longRun = spread / (batches - 1) / batchLength;
+			if (longRun <= 0)
+				return length;
+			return Math.min(length, length * variance / longRun);
+		}
+	}
+
+	public String toString() {
+		String ret = method + " " + query + ": parse " + parseTime + " ns, plan " + planTime + " ns, compute "
+				+ computeTime + " ns";
+		if (!eliminationOrder.isEmpty() || largestFactor > 0)
+			ret += ", order " + eliminationOrder + ", largest factor " + largestFactor + ", multiply-adds "
+					+ multiplyAdds + ", induced width " + inducedWidth;
+		if (samples > 0)
+			ret += String.format(", %d samples (%.0f/s), acceptance %.3f, effective samples %.1f", samples,
+					samplesPerSecond, acceptanceRate, effectiveSamples);
+		return ret;
+	}
+}
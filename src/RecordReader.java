@@ -0,0 +1,288 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import BayesianNetwork.*;
+
+/**
+ * Streaming reader of datasets over the variables of a network.
+ *
+ * The file is split into one segment per sink, and the segments are read in
+ * parallel through memory mapped windows. Every record is decoded into an int
+ * array holding, for each variable in network order, the index of its value
+ * in the declared domain or MISSING. Values are matched on raw bytes, so no
+ * string is created per record.
+ *
+ * Two formats are supported:
+ *  - CSV, with a header line naming the columns. Columns not in the network
+ *    are ignored, empty or "?" fields are missing.
+ *  - Binary, fixed width records of one byte per variable in network order,
+ *    holding the value index, or 0xFF if missing.
+ */
+public class RecordReader {
+
+	public static final int MISSING = -1;
+
+	// size of the memory mapped windows
+	static final int WINDOW = 1 << 26;
+
+	/**
+	 * Receives the records of one segment. Records are delivered from a single
+	 * thread, and the array is reused, so it must be copied to be retained.
+	 */
+	public interface Sink {
+		public void add(int[] record);
+	}
+
+	List<Variable> variables;
+	byte[][][] values; // [variable][value] -> value name in bytes
+
+	public RecordReader(BayesianNetwork network) {
+		variables = new ArrayList<Variable>(network.nodes.values());
+		values = new byte[variables.size()][][];
+		for (int i = 0; i < values.length; i++) {
+			List<Value> domain = new ArrayList<Value>(variables.get(i).domain.values());
+			values[i] = new byte[domain.size()][];
+			for (int j = 0; j < domain.size(); j++)
+				values[i][j] = domain.get(j).name.getBytes();
+		}
+	}
+
+	/**
+	 * Read a CSV file, distributing its records over the sinks.
+	 */
+	public void readCsv(File file, List<? extends Sink> sinks) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			int[] columns = header(raf);
+			long start = raf.getFilePointer();
+
+			// Segment boundaries are moved forward to the beginning of a line.
+			long[] bounds = new long[sinks.size() + 1];
+			bounds[0] = start;
+			for (int i = 1; i < sinks.size(); i++) {
+				long pos = Math.max(bounds[i - 1], start + (size - start) * i / sinks.size());
+				raf.seek(pos);
+				if (pos > start)
+					raf.readLine();
+				bounds[i] = Math.max(bounds[i - 1], raf.getFilePointer());
+			}
+			bounds[sinks.size()] = size;
+
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int i = 0; i < sinks.size(); i++)
+				tasks.add(new CsvSegment(channel, bounds[i], bounds[i + 1], columns, sinks.get(i)));
+			run(tasks);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Read a binary file, distributing its records over the sinks.
+	 */
+	public void readBinary(File file, List<? extends Sink> sinks) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			int width = variables.size();
+			long records = channel.size() / width;
+			if (records * width != channel.size())
+				throw new ValidationError("File size is not a multiple of the record size " + width + ".");
+
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int i = 0; i < sinks.size(); i++) {
+				long from = records * i / sinks.size() * width;
+				long to = records * (i + 1) / sinks.size() * width;
+				tasks.add(new BinarySegment(channel, from, to, sinks.get(i)));
+			}
+			run(tasks);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Run the segment readers in parallel, rethrowing their failure.
+	 */
+	private static void run(List<Callable<Void>> tasks) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+		try {
+			for (Future<Void> f : pool.invokeAll(tasks))
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Read the header line and map each column to a variable index, or
+	 * MISSING if the column is not in the network.
+	 */
+	private int[] header(RandomAccessFile raf) throws IOException {
+		String line = raf.readLine();
+		if (line == null)
+			throw new ValidationError("Empty dataset.");
+		String[] names = line.split(",");
+		int[] columns = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			columns[i] = MISSING;
+			for (int j = 0; j < variables.size(); j++)
+				if (variables.get(j).name.equals(names[i].trim()))
+					columns[i] = j;
+		}
+		return columns;
+	}
+
+	/**
+	 * Index of the value spelled by the bytes in [from, to), MISSING for an
+	 * empty or "?" field.
+	 */
+	int match(MappedByteBuffer buf, int from, int to, int var) {
+		while (from < to && buf.get(from) == ' ')
+			from++;
+		while (to > from && (buf.get(to - 1) == ' ' || buf.get(to - 1) == '\r'))
+			to--;
+		if (to == from || (to - from == 1 && buf.get(from) == '?'))
+			return MISSING;
+
+		byte[][] names = values[var];
+		search: for (int i = 0; i < names.length; i++) {
+			if (names[i].length != to - from)
+				continue;
+			for (int j = 0; j < names[i].length; j++)
+				if (names[i][j] != buf.get(from + j))
+					continue search;
+			return i;
+		}
+		byte[] token = new byte[to - from];
+		for (int j = 0; j < token.length; j++)
+			token[j] = buf.get(from + j);
+		throw new ValidationError("Variable <" + variables.get(var).name + "> does not contain the value \""
+				+ new String(token) + "\".");
+	}
+
+	/**
+	 * Parser of the lines in [from, to) of a CSV file.
+	 */
+	class CsvSegment implements Callable<Void> {
+		FileChannel channel;
+		long from, to;
+		int[] columns;
+		Sink sink;
+
+		CsvSegment(FileChannel channel, long from, long to, int[] columns, Sink sink) {
+			this.channel = channel;
+			this.from = from;
+			this.to = to;
+			this.columns = columns;
+			this.sink = sink;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			int[] record = new int[variables.size()];
+			long pos = from;
+			while (pos < to) {
+				int length = (int) Math.min(WINDOW, to - pos);
+				boolean last = pos + length == to;
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+
+				int lineStart = 0;
+				for (int i = 0; i < length; i++) {
+					if (buf.get(i) == '\n') {
+						parse(buf, lineStart, i, record);
+						lineStart = i + 1;
+					}
+				}
+				if (last && lineStart < length) {
+					parse(buf, lineStart, length, record);
+					lineStart = length;
+				}
+				if (lineStart == 0 && !last)
+					throw new ValidationError("Line longer than " + WINDOW + " bytes.");
+				// the partial line at the end of the window is read again with the next one
+				pos += lineStart;
+			}
+			return null;
+		}
+
+		private void parse(MappedByteBuffer buf, int from, int to, int[] record) {
+			if (to == from || (to - from == 1 && buf.get(from) == '\r'))
+				return; // blank line
+			for (int i = 0; i < record.length; i++)
+				record[i] = MISSING;
+			int column = 0;
+			int fieldStart = from;
+			for (int i = from; i <= to; i++) {
+				if (i == to || buf.get(i) == ',') {
+					if (column < columns.length && columns[column] != MISSING)
+						record[columns[column]] = match(buf, fieldStart, i, columns[column]);
+					column++;
+					fieldStart = i + 1;
+				}
+			}
+			sink.add(record);
+		}
+	}
+
+	/**
+	 * Decoder of the records in [from, to) of a binary file.
+	 */
+	class BinarySegment implements Callable<Void> {
+		FileChannel channel;
+		long from, to;
+		Sink sink;
+
+		BinarySegment(FileChannel channel, long from, long to, Sink sink) {
+			this.channel = channel;
+			this.from = from;
+			this.to = to;
+			this.sink = sink;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			int width = variables.size();
+			int[] record = new int[width];
+			int window = Math.max(1, WINDOW / width) * width;
+			for (long pos = from; pos < to; pos += window) {
+				int length = (int) Math.min(window, to - pos);
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+				for (int r = 0; r < length; r += width) {
+					for (int i = 0; i < width; i++) {
+						int v = buf.get(r + i) & 0xFF;
+						if (v == 0xFF)
+							record[i] = MISSING;
+						else if (v < values[i].length)
+							record[i] = v;
+						else
+							throw new ValidationError("Variable <" + variables.get(i).name + "> has no value index " + v + ".");
+					}
+					sink.add(record);
+				}
+			}
+			return null;
+		}
+	}
+}
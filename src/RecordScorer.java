@@ -0,0 +1,700 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import BayesianNetwork.*;
+
+/**
+ * Bulk scoring of records by their log probability under a network, for
+ * anomaly detection over large datasets.
+ *
+ * Records are given by column: one int array per variable in network order,
+ * holding the index of the value of each record in the declared domain, or
+ * RecordReader.MISSING. Table distributions are compiled once to flat arrays,
+ * parametric ones are never expanded to their full table.
+ *
+ * A fully observed record is scored by summing the log of one entry per
+ * variable. A partial record needs its marginal likelihood: the missing
+ * variables without observed descendants are left out, as they sum to 1, and
+ * the other missing variables are summed out by variable elimination. Records
+ * are grouped by their set of missing variables, and each group compiles
+ * its elimination once: the order, the scopes, and the index of each entry
+ * of the joined tables in the tables joined. A tree distribution spans the
+ * missing parents it tests, and a noisy-MAX one is divorced into a chain
+ * over its missing causes, as in Factor.divorce. Scoring a record then only
+ * fills the tables from the distributions and runs the compiled steps, whose
+ * results are rescaled to stay in range.
+ *
+ * The groups are split into chunks scored in parallel.
+ */
+public class RecordScorer {
+
+	static final int CHUNK = 4096;
+	static final int[] NONE = new int[0];
+
+	BayesianNetwork network;
+	int nThreads;
+	Model model;
+
+	public RecordScorer(BayesianNetwork network, int nThreads) {
+		this.network = network;
+		this.nThreads = nThreads;
+	}
+
+	/**
+	 * The log probability of each record, -Infinity if impossible.
+	 *
+	 * @param columns
+	 *            - the value indices of each variable in network order, see
+	 *            RecordReader.
+	 */
+	public double[] score(final int[][] columns) {
+		final Model m = model();
+		final int n = m.check(columns);
+		final double[] ret = new double[n];
+
+		// Number the missing patterns, then list the records of each.
+		Map<BitSet, Integer> ids = new HashMap<BitSet, Integer>();
+		List<BitSet> keys = new ArrayList<BitSet>();
+		int[] patternOf = new int[n];
+		for (int r = 0; r < n; r++) {
+			BitSet missing = new BitSet(columns.length);
+			for (int v = 0; v < columns.length; v++)
+				if (columns[v][r] == RecordReader.MISSING)
+					missing.set(v);
+			Integer id = ids.get(missing);
+			if (id == null) {
+				id = keys.size();
+				ids.put(missing, id);
+				keys.add(missing);
+			}
+			patternOf[r] = id;
+		}
+		int[] start = new int[keys.size() + 1];
+		for (int r = 0; r < n; r++)
+			start[patternOf[r] + 1]++;
+		for (int p = 0; p < keys.size(); p++)
+			start[p + 1] += start[p];
+		final int[] records = new int[n];
+		int[] fill = Arrays.copyOf(start, keys.size());
+		for (int r = 0; r < n; r++)
+			records[fill[patternOf[r]]++] = r;
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int p = 0; p < keys.size(); p++) {
+			final Pattern pattern = m.pattern(keys.get(p));
+			for (int from = start[p]; from < start[p + 1]; from += CHUNK) {
+				final int f = from, t = Math.min(from + CHUNK, start[p + 1]);
+				tasks.add(new Callable<Void>() {
+					public Void call() {
+						double[][] work = pattern.workspace();
+						for (int i = f; i < t; i++)
+							ret[records[i]] = pattern.score(columns, records[i], work);
+						return null;
+					}
+				});
+			}
+		}
+		run(tasks);
+		return ret;
+	}
+
+	/**
+	 * The posterior probability of an event given each record, 1 or 0 when
+	 * the record observes the variable.
+	 *
+	 * @param event
+	 *            - a String like "A = a1".
+	 */
+	public double[] posterior(int[][] columns, String event) {
+		Event e = network.parseEvent(event);
+		int var = new ArrayList<Variable>(network.nodes.values()).indexOf(e.node);
+		int value = new ArrayList<Value>(e.node.domain.values()).indexOf(e.value);
+
+		int[][] joint = columns.clone();
+		joint[var] = new int[columns[var].length];
+		Arrays.fill(joint[var], value);
+		double[] evidence = score(columns), both = score(joint);
+		double[] ret = new double[evidence.length];
+		for (int r = 0; r < ret.length; r++) {
+			int observed = columns[var][r];
+			if (observed != RecordReader.MISSING)
+				ret[r] = observed == value ? 1.0 : 0.0;
+			else
+				ret[r] = evidence[r] == Double.NEGATIVE_INFINITY ? 0.0 : Math.exp(both[r] - evidence[r]);
+		}
+		return ret;
+	}
+
+	/**
+	 * The compiled distributions of the current version of the network.
+	 */
+	private synchronized Model model() {
+		if (model == null || model.version != network.version())
+			while (true) {
+				long version = network.stableVersion();
+				try {
+					model = new Model(network, version);
+				} catch (RuntimeException e) {
+					// a family read in the middle of an update is retried, as in VariableElimination
+					if (network.version() == version)
+						throw e;
+					continue;
+				}
+				if (network.version() == version)
+					break;
+			}
+		return model;
+	}
+
+	/**
+	 * Run the tasks in parallel, rethrowing their failure.
+	 */
+	private void run(List<Callable<Void>> tasks) {
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			for (Future<Void> f : pool.invokeAll(tasks))
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * The distributions of every variable of the current version: table
+	 * distributions as flat arrays over their family, the variable being the
+	 * least significant digit, noisy-MAX ones as their cumulative
+	 * distributions, and the compiled missing patterns. Parametric
+	 * distributions are never expanded to their full table.
+	 */
+	static class Model {
+		final long version;
+		final List<Variable> variables; // those of the network, then the partial maxima of noisy-MAX nodes
+		final int nodes; // variables of the network
+		final Map<Variable, Integer> index = new IdentityHashMap<Variable, Integer>();
+		final int[] nValues;
+		final Value[][] values;
+		final Variable.Family[] families;
+		final int[][] family; // parents then the variable
+
+		// table distributions, null for parametric ones
+		final int[][] strides;
+		final double[][] p, logP;
+
+		// noisy-MAX distributions, null for the others
+		final double[][] leak;
+		final double[][][][] causes; // [variable][parent][value] -> cumulative distribution, null without effect
+		final int[][] partials;
+
+		final Map<BitSet, Pattern> patterns = new HashMap<BitSet, Pattern>();
+
+		Model(BayesianNetwork network, long version) {
+			this.version = version;
+			variables = new ArrayList<Variable>(network.nodes.values());
+			nodes = variables.size();
+			families = new Variable.Family[nodes];
+			for (int i = 0; i < nodes; i++) {
+				families[i] = network.family(variables.get(i));
+				if (families[i].distribution instanceof NoisyMax)
+					variables.addAll(((NoisyMax) families[i].distribution).partials);
+			}
+			for (int i = 0; i < variables.size(); i++)
+				index.put(variables.get(i), i);
+
+			nValues = new int[variables.size()];
+			for (int i = 0; i < nValues.length; i++)
+				nValues[i] = variables.get(i).domain.size();
+			values = new Value[nodes][];
+			for (int i = 0; i < nodes; i++)
+				values[i] = variables.get(i).domain.values().toArray(new Value[0]);
+
+			family = new int[nodes][];
+			strides = new int[nodes][];
+			p = new double[nodes][];
+			logP = new double[nodes][];
+			leak = new double[nodes][];
+			causes = new double[nodes][][][];
+			partials = new int[nodes][];
+			for (int i = 0; i < nodes; i++) {
+				Variable v = variables.get(i);
+				List<Variable> members = new ArrayList<Variable>(families[i].parents);
+				members.add(v);
+				family[i] = new int[members.size()];
+				for (int j = 0; j < members.size(); j++)
+					family[i][j] = index.get(members.get(j));
+
+				Distribution dist = families[i].distribution;
+				if (dist == null) {
+					strides[i] = new int[members.size()];
+					int stride = 1;
+					for (int j = members.size() - 1; j >= 0; j--) {
+						strides[i][j] = stride;
+						stride *= nValues[family[i][j]];
+					}
+					List<Condition> conditions = Variable.allConditions(members);
+					p[i] = new double[conditions.size()];
+					logP[i] = new double[conditions.size()];
+					for (int k = 0; k < conditions.size(); k++) {
+						p[i][k] = families[i].probability(conditions.get(k));
+						logP[i][k] = Math.log(p[i][k]);
+					}
+				} else if (dist instanceof NoisyMax) {
+					NoisyMax noisy = (NoisyMax) dist;
+					leak[i] = noisy.leak();
+					causes[i] = new double[family[i].length - 1][][];
+					for (int j = 0; j < causes[i].length; j++) {
+						int parent = family[i][j];
+						causes[i][j] = new double[nValues[parent]][];
+						for (int x = 0; x < nValues[parent]; x++)
+							causes[i][j][x] = noisy.cumulative(j, values[parent][x]);
+					}
+					partials[i] = new int[noisy.partials.size()];
+					for (int j = 0; j < partials[i].length; j++)
+						partials[i][j] = index.get(noisy.partials.get(j));
+				}
+			}
+		}
+
+		/**
+		 * Check the shape and values of a batch, returning its number of
+		 * records.
+		 */
+		int check(int[][] columns) {
+			if (columns.length != nodes)
+				throw new ValidationError("Expected " + nodes + " columns, received " + columns.length + ".");
+			int n = columns.length == 0 ? 0 : columns[0].length;
+			for (int v = 0; v < columns.length; v++) {
+				if (columns[v].length != n)
+					throw new ValidationError("The columns have different lengths.");
+				for (int x : columns[v])
+					if (x != RecordReader.MISSING && (x < 0 || x >= nValues[v]))
+						throw new ValidationError("Variable <" + variables.get(v).name + "> has no value " + x + ".");
+			}
+			return n;
+		}
+
+		synchronized Pattern pattern(BitSet missing) {
+			Pattern ret = patterns.get(missing);
+			if (ret == null) {
+				ret = new Pattern(this, missing);
+				patterns.put(missing, ret);
+			}
+			return ret;
+		}
+
+		/**
+		 * Evaluate a parametric distribution on the members of its family
+		 * observed in a record and the given values of the others.
+		 */
+		double probability(int v, int[][] columns, int r, int[] scope, int[] digits) {
+			List<Event> events = new ArrayList<Event>();
+			for (int member : family[v]) {
+				int x = columns[member][r];
+				if (x != RecordReader.MISSING)
+					events.add(new Event(variables.get(member), values[member][x]));
+			}
+			for (int i = 0; i < scope.length; i++)
+				events.add(new Event(variables.get(scope[i]), values[scope[i]][digits[i]]));
+			return families[v].distribution.probability(new Condition(events));
+		}
+	}
+
+	/**
+	 * The compiled marginal likelihood of the records missing the same
+	 * variables.
+	 */
+	static class Pattern {
+		final Model model;
+		// families whose members are all observed
+		final int[] direct;
+
+		// tables of the other table distributions over their missing members
+		final int[] tableOf;
+		final int[][] offsets; // entry -> offset of the missing members in the distribution
+		final int[][] observed; // observed members of the family
+		final int[][] observedStrides;
+
+		// tables of the other tree distributions over their missing members still tested
+		final int[] treeOf;
+		final int[][] treeScopes;
+
+		// the other noisy-MAX distributions divorced into chains, one table per
+		// cause as in Factor.divorce, or a single table when no cause is missing
+		final int[] chainOf;
+		final int[][] chainCauses; // positions in the family of the missing parents with an effect
+		final int[] chainStart; // first table of each chain
+
+		// elimination steps over the tables, numbered after the initial ones
+		final int initial; // tables filled from the records
+		final int[] sizes; // entries of each table
+		final int[][] inputs;
+		final int[][][] maps; // [step][input][joined entry] -> entry of the input
+		final int[] eliminated; // values of the eliminated variable
+		final int[] results; // tables left over no variable
+
+		Pattern(Model model, BitSet missing) {
+			this.model = model;
+			int n = model.nodes;
+
+			// The missing ancestors of observed variables must be summed out,
+			// the other missing variables are barren.
+			BitSet relevant = new BitSet(n);
+			for (int v = n - 1; v >= 0; v--)
+				if (!missing.get(v) || relevant.get(v))
+					for (int parent : model.family[v])
+						relevant.set(parent);
+			relevant.and(missing);
+
+			List<Integer> direct = new ArrayList<Integer>(), tableOf = new ArrayList<Integer>();
+			List<Integer> treeOf = new ArrayList<Integer>(), chainOf = new ArrayList<Integer>();
+			List<int[]> tableScopes = new ArrayList<int[]>(), treeScopes = new ArrayList<int[]>();
+			List<int[]> chainScopes = new ArrayList<int[]>(), chainCauses = new ArrayList<int[]>();
+			List<Integer> chainStart = new ArrayList<Integer>();
+			Set<Variable> summed = variables(toArray(indices(relevant)));
+			for (int v = 0; v < n; v++) {
+				if (missing.get(v) && !relevant.get(v))
+					continue;
+				int[] members = model.family[v];
+				Distribution dist = model.families[v].distribution;
+				List<Integer> scope = new ArrayList<Integer>();
+				if (dist instanceof NoisyMax) {
+					List<Integer> causes = new ArrayList<Integer>();
+					for (int j = 0; j < members.length - 1; j++)
+						if (missing.get(members[j]) && effective(model.causes[v][j]))
+							causes.add(j);
+					if (causes.isEmpty() && !missing.get(v)) {
+						direct.add(v);
+						continue;
+					}
+					chainOf.add(v);
+					chainCauses.add(toArray(causes));
+					chainStart.add(chainScopes.size());
+					if (causes.isEmpty())
+						chainScopes.add(new int[] { v });
+					for (int j = 0; j < causes.size(); j++) {
+						boolean last = j == causes.size() - 1;
+						scope.clear();
+						if (j > 0)
+							scope.add(model.partials[v][j - 1]);
+						scope.add(members[causes.get(j)]);
+						if (!last)
+							scope.add(model.partials[v][j]);
+						else if (missing.get(v))
+							scope.add(v);
+						chainScopes.add(toArray(scope));
+						if (!last)
+							summed.add(model.variables.get(model.partials[v][j]));
+					}
+					continue;
+				}
+				Set<Variable> tested = dist instanceof TreeDistribution
+						? ((TreeDistribution) dist).scope(new Condition(new ArrayList<Event>())) : null;
+				for (int member : members)
+					if (missing.get(member) && (member == v || tested == null || tested.contains(model.variables.get(member))))
+						scope.add(member);
+				if (scope.isEmpty())
+					direct.add(v);
+				else if (dist == null) {
+					tableOf.add(v);
+					tableScopes.add(toArray(scope));
+				} else {
+					treeOf.add(v);
+					treeScopes.add(toArray(scope));
+				}
+			}
+			this.direct = toArray(direct);
+			this.tableOf = toArray(tableOf);
+			this.treeOf = toArray(treeOf);
+			this.treeScopes = treeScopes.toArray(new int[0][]);
+			this.chainOf = toArray(chainOf);
+			this.chainCauses = chainCauses.toArray(new int[0][]);
+			this.chainStart = new int[this.chainOf.length];
+			for (int c = 0; c < this.chainOf.length; c++)
+				this.chainStart[c] = this.tableOf.length + this.treeOf.length + chainStart.get(c);
+
+			offsets = new int[this.tableOf.length][];
+			observed = new int[this.tableOf.length][];
+			observedStrides = new int[this.tableOf.length][];
+			for (int t = 0; t < this.tableOf.length; t++) {
+				int v = this.tableOf[t];
+				int[] scope = tableScopes.get(t);
+				offsets[t] = new int[size(scope)];
+				for (int entry = 0; entry < offsets[t].length; entry++)
+					for (int i = 0, rest = entry; i < scope.length; i++) {
+						int stride = size(Arrays.copyOfRange(scope, i + 1, scope.length));
+						offsets[t][entry] += rest / stride * strideOf(v, scope[i]);
+						rest %= stride;
+					}
+				List<Integer> obs = new ArrayList<Integer>(), obsStrides = new ArrayList<Integer>();
+				for (int j = 0; j < model.family[v].length; j++)
+					if (!missing.get(model.family[v][j])) {
+						obs.add(model.family[v][j]);
+						obsStrides.add(model.strides[v][j]);
+					}
+				observed[t] = toArray(obs);
+				observedStrides[t] = toArray(obsStrides);
+			}
+
+			// Plan the elimination on the scopes, as VariableElimination does.
+			List<int[]> scopes = new ArrayList<int[]>(tableScopes);
+			scopes.addAll(treeScopes);
+			scopes.addAll(chainScopes);
+			initial = scopes.size();
+			List<Set<Variable>> sets = new ArrayList<Set<Variable>>();
+			for (int[] scope : scopes)
+				sets.add(variables(scope));
+			List<Variable> order = VariableElimination.plan(sets, summed);
+
+			List<Integer> sizes = new ArrayList<Integer>();
+			List<int[]> live = new ArrayList<int[]>(scopes);
+			List<Integer> liveIds = new ArrayList<Integer>();
+			for (int t = 0; t < scopes.size(); t++) {
+				sizes.add(size(scopes.get(t)));
+				liveIds.add(t);
+			}
+			inputs = new int[order.size()][];
+			maps = new int[order.size()][][];
+			eliminated = new int[order.size()];
+			for (int s = 0; s < order.size(); s++) {
+				int x = model.index.get(order.get(s));
+				List<Integer> in = new ArrayList<Integer>();
+				List<int[]> inScopes = new ArrayList<int[]>();
+				List<Integer> joined = new ArrayList<Integer>();
+				for (int k = live.size() - 1; k >= 0; k--)
+					if (contains(live.get(k), x)) {
+						in.add(liveIds.remove(k));
+						int[] scope = live.remove(k);
+						inScopes.add(scope);
+						for (int y : scope)
+							if (y != x && !joined.contains(y))
+								joined.add(y);
+					}
+				int[] out = toArray(joined);
+				joined.add(x);
+				int[] union = toArray(joined);
+
+				inputs[s] = toArray(in);
+				eliminated[s] = model.nValues[x];
+				maps[s] = new int[in.size()][size(union)];
+				int[] digits = new int[union.length];
+				for (int u = 0; u < maps[s][0].length; u++) {
+					for (int i = union.length - 1, rest = u; i >= 0; i--) {
+						digits[i] = rest % model.nValues[union[i]];
+						rest /= model.nValues[union[i]];
+					}
+					for (int j = 0; j < in.size(); j++) {
+						int entry = 0;
+						for (int y : inScopes.get(j))
+							entry = entry * model.nValues[y] + digits[indexOf(union, y)];
+						maps[s][j][u] = entry;
+					}
+				}
+				live.add(out);
+				liveIds.add(sizes.size());
+				sizes.add(size(out));
+			}
+			this.sizes = toArray(sizes);
+			results = toArray(liveIds);
+		}
+
+		/**
+		 * The tables of one thread.
+		 */
+		double[][] workspace() {
+			double[][] ret = new double[sizes.length][];
+			for (int t = 0; t < sizes.length; t++)
+				ret[t] = new double[sizes[t]];
+			return ret;
+		}
+
+		double score(int[][] columns, int r, double[][] work) {
+			double ret = 0.0;
+			for (int v : direct) {
+				if (model.logP[v] == null) {
+					ret += Math.log(model.probability(v, columns, r, NONE, NONE));
+					continue;
+				}
+				int entry = 0;
+				for (int j = 0; j < model.family[v].length; j++)
+					entry += columns[model.family[v][j]][r] * model.strides[v][j];
+				ret += model.logP[v][entry];
+			}
+
+			for (int t = 0; t < tableOf.length; t++) {
+				int base = 0;
+				for (int j = 0; j < observed[t].length; j++)
+					base += columns[observed[t][j]][r] * observedStrides[t][j];
+				double[] p = model.p[tableOf[t]], table = work[t];
+				int[] offset = offsets[t];
+				for (int entry = 0; entry < table.length; entry++)
+					table[entry] = p[base + offset[entry]];
+			}
+
+			for (int t = 0; t < treeOf.length; t++) {
+				int[] scope = treeScopes[t], digits = new int[scope.length];
+				double[] table = work[tableOf.length + t];
+				for (int entry = 0; entry < table.length; entry++) {
+					for (int i = scope.length - 1, rest = entry; i >= 0; i--) {
+						digits[i] = rest % model.nValues[scope[i]];
+						rest /= model.nValues[scope[i]];
+					}
+					table[entry] = model.probability(treeOf[t], columns, r, scope, digits);
+				}
+			}
+
+			for (int c = 0; c < chainOf.length; c++)
+				fill(c, columns, r, work);
+
+			for (int s = 0; s < inputs.length; s++) {
+				double[] out = work[initial + s];
+				Arrays.fill(out, 0.0);
+				int[] in = inputs[s];
+				int k = eliminated[s];
+				for (int u = 0; u < maps[s][0].length; u++) {
+					double product = 1.0;
+					for (int j = 0; j < in.length; j++)
+						product *= work[in[j]][maps[s][j][u]];
+					out[u / k] += product;
+				}
+				// rescale so that long products do not underflow
+				double max = 0.0;
+				for (double d : out)
+					max = Math.max(max, d);
+				if (max == 0)
+					return Double.NEGATIVE_INFINITY;
+				for (int u = 0; u < out.length; u++)
+					out[u] /= max;
+				ret += Math.log(max);
+			}
+			for (int t : results)
+				ret += Math.log(work[t][0]);
+			return ret;
+		}
+
+		/**
+		 * Fill the tables of a divorced noisy-MAX chain for a record, the
+		 * causes of the observed parents being folded into the leak.
+		 */
+		private void fill(int c, int[][] columns, int r, double[][] work) {
+			int v = chainOf[c], n = model.nValues[v];
+			int[] members = model.family[v], causes = chainCauses[c];
+			double[] leak = model.leak[v].clone();
+			for (int j = 0; j < members.length - 1; j++) {
+				int x = columns[members[j]][r];
+				double[] cdf = x == RecordReader.MISSING ? null : model.causes[v][j][x];
+				if (cdf != null)
+					for (int z = 0; z < n; z++)
+						leak[z] *= cdf[z];
+			}
+			int y = columns[v][r];
+
+			if (causes.length == 0) {
+				double[] table = work[chainStart[c]];
+				for (int z = 0; z < n; z++)
+					table[z] = leak[z] - (z > 0 ? leak[z - 1] : 0.0);
+				return;
+			}
+			for (int j = 0; j < causes.length; j++) {
+				double[] table = work[chainStart[c] + j];
+				double[][] cause = model.causes[v][causes[j]];
+				boolean fixed = j == causes.length - 1 && y != RecordReader.MISSING;
+				int entry = 0;
+				for (int zp = 0; zp < (j == 0 ? 1 : n); zp++)
+					for (double[] cdf : cause)
+						for (int z = fixed ? y : 0; z < (fixed ? y + 1 : n); z++) {
+							double p;
+							if (j == 0) // the leak is the first cause
+								p = leak[z] * at(cdf, z) - (z > 0 ? leak[z - 1] * at(cdf, z - 1) : 0.0);
+							else if (z == zp)
+								p = at(cdf, z);
+							else if (z > zp)
+								p = at(cdf, z) - at(cdf, z - 1);
+							else
+								p = 0.0;
+							table[entry++] = p;
+						}
+			}
+		}
+
+		/**
+		 * A value of a cumulative distribution, a null one having no effect.
+		 */
+		private static double at(double[] cdf, int z) {
+			return cdf == null ? 1.0 : cdf[z];
+		}
+
+		private static boolean effective(double[][] cause) {
+			for (double[] cdf : cause)
+				if (cdf != null)
+					return true;
+			return false;
+		}
+
+		/**
+		 * The stride of a member in the distribution of a variable.
+		 */
+		private int strideOf(int v, int member) {
+			return model.strides[v][indexOf(model.family[v], member)];
+		}
+
+		private int size(int[] scope) {
+			long ret = 1;
+			for (int v : scope)
+				if ((ret *= model.nValues[v]) > Integer.MAX_VALUE)
+					throw new ValidationError("The records missing these variables are too large to score.");
+			return (int) ret;
+		}
+
+		private Set<Variable> variables(int[] scope) {
+			Set<Variable> ret = new HashSet<Variable>();
+			for (int v : scope)
+				ret.add(model.variables.get(v));
+			return ret;
+		}
+
+		private static List<Integer> indices(BitSet set) {
+			List<Integer> ret = new ArrayList<Integer>();
+			for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1))
+				ret.add(i);
+			return ret;
+		}
+
+		private static int[] toArray(Collection<Integer> list) {
+			int[] ret = new int[list.size()];
+			int i = 0;
+			for (int x : list)
+				ret[i++] = x;
+			return ret;
+		}
+
+		private static boolean contains(int[] array, int x) {
+			return indexOf(array, x) >= 0;
+		}
+
+		private static int indexOf(int[] array, int x) {
+			for (int i = 0; i < array.length; i++)
+				if (array[i] == x)
+					return i;
+			return -1;
+		}
+	}
+}
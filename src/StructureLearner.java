@@ -0,0 +1,646 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import BayesianNetwork.*;
+
+/**
+ * Score based structure learning of a Bayesian network from a complete
+ * dataset, by hill climbing or tabu search over single edge moves (add,
+ * remove or reverse an edge).
+ *
+ * The variables and their domains are taken from a template network, whose
+ * edges are ignored. The score (BIC or BDeu) is decomposable, a sum of local
+ * scores of each family, so
+ *  - local scores are cached per (variable, parent set),
+ *  - the score change of a move is cached and only recomputed when the
+ *    families it touches are changed by the move applied,
+ *  - the moves to recompute are scored in parallel.
+ *
+ * The counts behind a local score are taken from bitsets of the records
+ * having each value, intersected parent by parent with empty branches
+ * skipped, or by scanning the columns for large parent sets.
+ *
+ * Records with missing values are skipped.
+ */
+public class StructureLearner {
+
+	public enum Score {
+		BIC, BDEU
+	}
+
+	static final int ADD = 0, REMOVE = 1, REVERSE = 2;
+
+	// the largest number of parent configurations counted with bitsets
+	static final int BITSET_CONFIGURATIONS = 64;
+	// the largest family table counted, families beyond are never proposed
+	static final long MAX_TABLE = 1 << 24;
+
+	BayesianNetwork template;
+	List<Variable> variables;
+	int[] card;
+	int nThreads;
+
+	Score score;
+	double ess; // equivalent sample size of BDeu
+	double prior; // Dirichlet prior of the learned tables
+	int maxParents;
+
+	// the dataset, by column, and the bitsets of records having each value
+	int nRecords;
+	byte[][] columns;
+	long[][][] bits;
+
+	Map<Family, Double> localScores;
+
+	public StructureLearner(BayesianNetwork template, int nThreads) {
+		this.template = template;
+		this.nThreads = Math.max(1, nThreads);
+		variables = new ArrayList<Variable>(template.nodes.values());
+		card = new int[variables.size()];
+		for (int i = 0; i < card.length; i++) {
+			card[i] = variables.get(i).domain.size();
+			if (card[i] > 255)
+				throw new ValidationError("Variable <" + variables.get(i).name + "> has too many values.");
+		}
+		score = Score.BIC;
+		ess = 1.0;
+		prior = 1.0;
+		maxParents = 4;
+		localScores = new ConcurrentHashMap<Family, Double>();
+	}
+
+	public StructureLearner(BayesianNetwork template) {
+		this(template, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param score - BIC or BDEU
+	 * @param ess - the equivalent sample size of BDeu
+	 */
+	public void setScore(Score score, double ess) {
+		this.score = score;
+		this.ess = ess;
+		localScores.clear();
+	}
+
+	public void setMaxParents(int maxParents) {
+		this.maxParents = maxParents;
+	}
+
+	/**
+	 * The Dirichlet prior of the tables of the learned network, see
+	 * ParameterLearner.
+	 */
+	public void setPrior(double prior) {
+		this.prior = prior;
+	}
+
+	public void loadCsv(File file) throws IOException {
+		List<Loader> loaders = loaders();
+		new RecordReader(template).readCsv(file, loaders);
+		load(loaders);
+	}
+
+	public void loadBinary(File file) throws IOException {
+		List<Loader> loaders = loaders();
+		new RecordReader(template).readBinary(file, loaders);
+		load(loaders);
+	}
+
+	/**
+	 * Collects the complete records read by one thread, by column.
+	 */
+	class Loader implements RecordReader.Sink {
+		byte[][] columns = new byte[variables.size()][1024];
+		int size = 0;
+
+		@Override
+		public void add(int[] record) {
+			for (int v : record)
+				if (v == RecordReader.MISSING)
+					return;
+			if (size == columns[0].length)
+				for (int i = 0; i < columns.length; i++)
+					columns[i] = Arrays.copyOf(columns[i], size * 2);
+			for (int i = 0; i < columns.length; i++)
+				columns[i][size] = (byte) record[i];
+			size++;
+		}
+	}
+
+	private List<Loader> loaders() {
+		List<Loader> ret = new ArrayList<Loader>();
+		for (int i = 0; i < nThreads; i++)
+			ret.add(new Loader());
+		return ret;
+	}
+
+	private void load(List<Loader> loaders) {
+		int offset = columns == null ? 0 : nRecords;
+		for (Loader l : loaders)
+			nRecords += l.size;
+		byte[][] merged = new byte[variables.size()][];
+		for (int i = 0; i < merged.length; i++) {
+			merged[i] = columns == null ? new byte[nRecords] : Arrays.copyOf(columns[i], nRecords);
+			int pos = offset;
+			for (Loader l : loaders) {
+				System.arraycopy(l.columns[i], 0, merged[i], pos, l.size);
+				pos += l.size;
+			}
+		}
+		columns = merged;
+
+		int words = (nRecords + 63) / 64;
+		bits = new long[variables.size()][][];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = new long[card[i]][words];
+			for (int r = 0; r < nRecords; r++)
+				bits[i][columns[i][r] & 0xFF][r >> 6] |= 1L << r;
+		}
+		localScores.clear();
+	}
+
+	/**
+	 * A variable with a sorted set of parents, keying the local scores.
+	 */
+	static class Family {
+		final int node;
+		final int[] parents;
+
+		Family(int node, int[] parents) {
+			this.node = node;
+			this.parents = parents;
+		}
+
+		public boolean equals(Object other) {
+			if (!(other instanceof Family))
+				return false;
+			Family f = (Family) other;
+			return f.node == node && Arrays.equals(f.parents, parents);
+		}
+
+		public int hashCode() {
+			return node * 31 + Arrays.hashCode(parents);
+		}
+	}
+
+	/**
+	 * Counts of the family configurations, the first parent being the most
+	 * significant digit and the variable the least.
+	 */
+	long[] counts(int node, int[] parents) {
+		long size = tableSize(node, parents);
+		if (size > MAX_TABLE)
+			throw new ValidationError("The family of <" + variables.get(node).name + "> is too large to count.");
+		int configs = (int) (size / card[node]);
+		long[] counts = new long[(int) size];
+
+		if (configs <= BITSET_CONFIGURATIONS) {
+			long[] all = new long[(nRecords + 63) / 64];
+			Arrays.fill(all, -1L);
+			if (nRecords % 64 != 0)
+				all[all.length - 1] = (1L << nRecords) - 1;
+			long[][] buffers = new long[parents.length + 1][all.length];
+			countBits(node, parents, 0, all, 0, counts, buffers);
+		} else {
+			for (int r = 0; r < nRecords; r++) {
+				int index = 0;
+				for (int p : parents)
+					index = index * card[p] + (columns[p][r] & 0xFF);
+				counts[index * card[node] + (columns[node][r] & 0xFF)]++;
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Number of entries in the table of a family, saturating past MAX_TABLE
+	 * so that it cannot overflow.
+	 */
+	long tableSize(int node, int[] parents) {
+		long size = card[node];
+		for (int p : parents)
+			size = Math.min(size * card[p], MAX_TABLE + 1);
+		return size;
+	}
+
+	/**
+	 * Whether the family of a node with one more parent can be counted.
+	 */
+	private boolean fits(int node, int[] parents, int parent) {
+		return tableSize(node, parents) * card[parent] <= MAX_TABLE;
+	}
+
+	private void countBits(int node, int[] parents, int depth, long[] mask, int config, long[] counts,
+			long[][] buffers) {
+		if (depth == parents.length) {
+			for (int k = 0; k < card[node]; k++) {
+				long[] b = bits[node][k];
+				long n = 0;
+				for (int w = 0; w < mask.length; w++)
+					n += Long.bitCount(mask[w] & b[w]);
+				counts[config * card[node] + k] = n;
+			}
+			return;
+		}
+		int p = parents[depth];
+		long[] next = buffers[depth];
+		for (int v = 0; v < card[p]; v++) {
+			long[] b = bits[p][v];
+			boolean empty = true;
+			for (int w = 0; w < mask.length; w++) {
+				next[w] = mask[w] & b[w];
+				empty &= next[w] == 0;
+			}
+			if (!empty) // the counts of an empty branch stay 0
+				countBits(node, parents, depth + 1, next, config * card[p] + v, counts, buffers);
+		}
+	}
+
+	/**
+	 * The cached local score of a variable given a sorted set of parents.
+	 */
+	double localScore(int node, int[] parents) {
+		Family key = new Family(node, parents);
+		Double cached = localScores.get(key);
+		if (cached != null)
+			return cached;
+
+		long[] counts = counts(node, parents);
+		int r = card[node];
+		int q = counts.length / r;
+		double s = 0.0;
+		if (score == Score.BIC) {
+			for (int j = 0; j < q; j++) {
+				long nj = 0;
+				for (int k = 0; k < r; k++)
+					nj += counts[j * r + k];
+				for (int k = 0; k < r; k++)
+					if (counts[j * r + k] > 0)
+						s += counts[j * r + k] * Math.log((double) counts[j * r + k] / nj);
+			}
+			s -= 0.5 * Math.log(Math.max(nRecords, 1)) * q * (r - 1);
+		} else {
+			double aj = ess / q, ajk = ess / (q * r);
+			for (int j = 0; j < q; j++) {
+				long nj = 0;
+				for (int k = 0; k < r; k++) {
+					nj += counts[j * r + k];
+					s += lgamma(ajk + counts[j * r + k]) - lgamma(ajk);
+				}
+				s += lgamma(aj) - lgamma(aj + nj);
+			}
+		}
+		localScores.put(key, s);
+		return s;
+	}
+
+	/**
+	 * Logarithm of the gamma function, by the Lanczos approximation.
+	 */
+	static double lgamma(double x) {
+		double[] c = { 76.18009172947146, -86.50532032941677, 24.01409824083091, -1.231739572450155,
+				0.1208650973866179e-2, -0.5395239384953e-5 };
+		double y = x, tmp = x + 5.5;
+		tmp -= (x + 0.5) * Math.log(tmp);
+		double ser = 1.000000000190015;
+		for (double d : c)
+			ser += d / ++y;
+		return -tmp + Math.log(2.5066282746310005 * ser / x);
+	}
+
+	/**
+	 * The current structure, as sorted parent sets.
+	 */
+	class Graph {
+		int[][] parents;
+
+		Graph() {
+			parents = new int[variables.size()][0];
+		}
+
+		Graph(Graph other) {
+			parents = other.parents.clone();
+		}
+
+		boolean hasEdge(int from, int to) {
+			return Arrays.binarySearch(parents[to], from) >= 0;
+		}
+
+		int[] with(int node, int parent) {
+			int[] ret = Arrays.copyOf(parents[node], parents[node].length + 1);
+			ret[ret.length - 1] = parent;
+			Arrays.sort(ret);
+			return ret;
+		}
+
+		int[] without(int node, int parent) {
+			int[] ret = new int[parents[node].length - 1];
+			int i = 0;
+			for (int p : parents[node])
+				if (p != parent)
+					ret[i++] = p;
+			return ret;
+		}
+
+		/**
+		 * Whether there is a directed path from one node to another, ignoring
+		 * the edge given.
+		 */
+		boolean path(int from, int to, int ignoreFrom, int ignoreTo) {
+			boolean[] seen = new boolean[parents.length];
+			LinkedList<Integer> stack = new LinkedList<Integer>();
+			stack.push(to);
+			// walk up the parents from the target to find the source
+			while (!stack.isEmpty()) {
+				int n = stack.pop();
+				if (n == from)
+					return true;
+				if (seen[n])
+					continue;
+				seen[n] = true;
+				for (int p : parents[n])
+					if (!(n == ignoreTo && p == ignoreFrom))
+						stack.push(p);
+			}
+			return false;
+		}
+
+		boolean acyclic(Move m) {
+			if (m.type == ADD)
+				return !path(m.to, m.from, -1, -1);
+			if (m.type == REVERSE)
+				return !path(m.from, m.to, m.from, m.to);
+			return true;
+		}
+
+		void apply(Move m) {
+			if (m.type == ADD) {
+				parents[m.to] = with(m.to, m.from);
+			} else if (m.type == REMOVE) {
+				parents[m.to] = without(m.to, m.from);
+			} else {
+				parents[m.to] = without(m.to, m.from);
+				parents[m.from] = with(m.from, m.to);
+			}
+		}
+
+		double score() {
+			double s = 0.0;
+			for (int i = 0; i < parents.length; i++)
+				s += localScore(i, parents[i]);
+			return s;
+		}
+	}
+
+	/**
+	 * A single edge move, from -> to being the edge added, removed or reversed.
+	 */
+	class Move {
+		final int type, from, to;
+		double delta;
+
+		Move(int type, int from, int to) {
+			this.type = type;
+			this.from = from;
+			this.to = to;
+		}
+
+		long key() {
+			return ((long) type * variables.size() + from) * variables.size() + to;
+		}
+
+		Move inverse() {
+			if (type == ADD)
+				return new Move(REMOVE, from, to);
+			if (type == REMOVE)
+				return new Move(ADD, from, to);
+			return new Move(REVERSE, to, from);
+		}
+
+		/**
+		 * Whether the score change depends on the family of the node.
+		 */
+		boolean touches(int node) {
+			return node == to || (type == REVERSE && node == from);
+		}
+
+		double delta(Graph g) {
+			if (type == ADD)
+				return localScore(to, g.with(to, from)) - localScore(to, g.parents[to]);
+			if (type == REMOVE)
+				return localScore(to, g.without(to, from)) - localScore(to, g.parents[to]);
+			return localScore(to, g.without(to, from)) - localScore(to, g.parents[to])
+					+ localScore(from, g.with(from, to)) - localScore(from, g.parents[from]);
+		}
+	}
+
+	/**
+	 * All moves keeping the parent sets within the bound and the family tables
+	 * within MAX_TABLE, before the acyclicity check.
+	 */
+	private List<Move> moves(Graph g) {
+		List<Move> ret = new ArrayList<Move>();
+		for (int from = 0; from < variables.size(); from++)
+			for (int to = 0; to < variables.size(); to++) {
+				if (from == to)
+					continue;
+				if (g.hasEdge(from, to)) {
+					ret.add(new Move(REMOVE, from, to));
+					if (g.parents[from].length < maxParents && fits(from, g.parents[from], to))
+						ret.add(new Move(REVERSE, from, to));
+				} else if (!g.hasEdge(to, from) && g.parents[to].length < maxParents && fits(to, g.parents[to], from)) {
+					ret.add(new Move(ADD, from, to));
+				}
+			}
+		return ret;
+	}
+
+	/**
+	 * Fill the score change of the moves, from the cache or by scoring the
+	 * missing ones in parallel.
+	 */
+	private void evaluate(ExecutorService pool, final Graph g, List<Move> moves, Map<Long, Double> deltas) {
+		final List<Move> todo = new ArrayList<Move>();
+		for (Move m : moves) {
+			Double d = deltas.get(m.key());
+			if (d != null)
+				m.delta = d;
+			else
+				todo.add(m);
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t = 0; t < nThreads; t++) {
+			final int offset = t;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i = offset; i < todo.size(); i += nThreads)
+						todo.get(i).delta = todo.get(i).delta(g);
+					return null;
+				}
+			});
+		}
+		try {
+			for (Future<Void> f : pool.invokeAll(tasks))
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		for (Move m : todo)
+			deltas.put(m.key(), m.delta);
+	}
+
+	/**
+	 * Forget the cached score changes depending on the families changed by a
+	 * move.
+	 */
+	private void invalidate(Move applied, Map<Long, Double> deltas) {
+		int n = variables.size();
+		for (Iterator<Long> it = deltas.keySet().iterator(); it.hasNext();) {
+			long key = it.next();
+			Move m = new Move((int) (key / n / n), (int) (key / n % n), (int) (key % n));
+			if (m.touches(applied.to) || (applied.type == REVERSE && m.touches(applied.from)))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Greedily apply the best move until no move improves the score.
+	 */
+	public BayesianNetwork hillClimb() {
+		return search(0, 0);
+	}
+
+	/**
+	 * Apply the best move not in the tabu list, even if it lowers the score,
+	 * and return the best structure found once it has not improved for the
+	 * given number of iterations. A tabu move is still allowed if it leads to
+	 * a better structure than the best one.
+	 *
+	 * @param tabuSize - number of recent moves whose inverse is forbidden
+	 * @param patience - number of iterations without improvement to stop
+	 */
+	public BayesianNetwork tabuSearch(int tabuSize, int patience) {
+		return search(tabuSize, patience);
+	}
+
+	private BayesianNetwork search(int tabuSize, int patience) {
+		if (nRecords == 0)
+			throw new ValidationError("No complete record loaded.");
+		Graph g = new Graph();
+		double current = g.score();
+		Graph best = new Graph(g);
+		double bestScore = current;
+		int stale = 0;
+
+		Map<Long, Double> deltas = new HashMap<Long, Double>();
+		LinkedList<Long> tabu = new LinkedList<Long>();
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+
+		try {
+			while (true) {
+				List<Move> moves = moves(g);
+				evaluate(pool, g, moves, deltas);
+				Collections.sort(moves, new Comparator<Move>() {
+					@Override
+					public int compare(Move a, Move b) {
+						return Double.compare(b.delta, a.delta);
+					}
+				});
+
+				Move chosen = null;
+				for (Move m : moves) {
+					boolean aspiration = current + m.delta > bestScore + 1e-9;
+					if (tabu.contains(m.key()) && !aspiration)
+						continue;
+					if (g.acyclic(m)) {
+						chosen = m;
+						break;
+					}
+				}
+				if (chosen == null || (tabuSize == 0 && chosen.delta <= 1e-9))
+					break;
+
+				g.apply(chosen);
+				current += chosen.delta;
+				invalidate(chosen, deltas);
+				if (tabuSize > 0) {
+					tabu.addLast(chosen.inverse().key());
+					if (tabu.size() > tabuSize)
+						tabu.removeFirst();
+				}
+
+				if (current > bestScore + 1e-9) {
+					bestScore = current;
+					best = new Graph(g);
+					stale = 0;
+				} else if (++stale >= patience) {
+					break;
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return build(best);
+	}
+
+	/**
+	 * Make the network of a structure, adding the variables in topological
+	 * order, with tables learned from the counts.
+	 */
+	private BayesianNetwork build(Graph g) {
+		List<Integer> order = new ArrayList<Integer>();
+		boolean[] added = new boolean[variables.size()];
+		while (order.size() < variables.size()) {
+			for (int i = 0; i < variables.size(); i++) {
+				if (added[i])
+					continue;
+				boolean ready = true;
+				for (int p : g.parents[i])
+					ready &= added[p];
+				if (ready) {
+					added[i] = true;
+					order.add(i);
+				}
+			}
+		}
+
+		BayesianNetwork net = new BayesianNetwork();
+		double[][] counts = new double[order.size()][];
+		for (int k = 0; k < order.size(); k++) {
+			int i = order.get(k);
+			Variable v = variables.get(i);
+			String[] parents = new String[g.parents[i].length];
+			for (int j = 0; j < parents.length; j++)
+				parents[j] = variables.get(g.parents[i][j]).name;
+			net.addNode(v.name, v.domain.keySet().toArray(new String[0]), parents, new String[0]);
+
+			long[] c = counts(i, g.parents[i]);
+			counts[k] = new double[c.length];
+			for (int j = 0; j < c.length; j++)
+				counts[k][j] = c[j];
+		}
+		new ParameterLearner(net, prior, 1).update(counts);
+		return net;
+	}
+}
@@ -1,6 +1,13 @@
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import BayesianNetwork.*;
 
 /**
@@ -22,6 +29,7 @@ import BayesianNetwork.*;
 public class VariableElimination implements Inference{
 
 	BayesianNetwork network;
+	InferenceListener listener;
 
 	/**
 	 * Constructor, specify the net work to be used.
@@ -31,6 +39,13 @@ public class VariableElimination implements Inference{
 		this.network = network;
 	}
 
+	/**
+	 * Collect the statistics of every query for the listener, null to stop.
+	 */
+	public void setListener(InferenceListener listener) {
+		this.listener = listener;
+	}
+
 	/**
 	 * The ask method, will execute variable elimination algorithm on the input
 	 * network and return the result value in string.
@@ -50,42 +65,300 @@ public class VariableElimination implements Inference{
 	 * The underline variable elimination implementation.
 	 */
 	public String ask(String var, String observed) {
+		QueryStatistics stats = listener == null ? null : new QueryStatistics("VE", var + " | " + observed);
+		long time = stats == null ? 0 : System.nanoTime();
+
 		// Get target event and evidence objects.
 		Event target = network.parseEvent(var);
 		Condition evidence = network.parseCondition(observed);
+		if (stats != null)
+			time = phase(stats, 0, time);
 
-		// To eliminate in reverse topological ordering.
-		// Assume the insertion order of the network is topologically sorted,
-		// which is the case in our implementation.
-		List<Variable> order = new ArrayList<Variable>();
-		for (Variable v : network.nodes.values())
-			order.add(0, v);
+		List<Factor> factors = factors(evidence, Arrays.asList(target.node));
+		List<Variable> order = order(factors, Arrays.asList(target.node));
+		if (stats != null)
+			time = phase(stats, 1, time);
+
+		Factor result = product(sumOut(factors, order, stats));
+
+		// Normalize the result factor
+		result.normalise();
+		if (stats != null) {
+			phase(stats, 2, time);
+			listener.queryCompleted(stats);
+		}
+		
+		// Return the result matching the query in string format.
+		return String.format("%.6f", result.p.get(new Condition(Arrays.asList(target))));
+	}
+
+	/**
+	 * Add the time since the last mark to a phase (parse, plan, compute).
+	 * 
+	 * @return the new mark.
+	 */
+	static long phase(QueryStatistics stats, int phase, long mark) {
+		long now = System.nanoTime();
+		if (phase == 0)
+			stats.parseTime += now - mark;
+		else if (phase == 1)
+			stats.planTime += now - mark;
+		else
+			stats.computeTime += now - mark;
+		return now;
+	}
+
+	/**
+	 * Sum out every hidden variable and return the unnormalised factor of the
+	 * target given evidence.
+	 */
+	public Factor eliminate(Variable target, Condition evidence) {
+		return eliminate(Arrays.asList(target), evidence);
+	}
+
+	/**
+	 * Sum out every variable but the query variables and return their
+	 * unnormalised joint factor given evidence.
+	 */
+	public Factor eliminate(Collection<Variable> query, Condition evidence) {
+		List<Factor> factors = factors(evidence, query);
+		return eliminate(factors, order(factors, query));
+	}
 
-		// For each variable, make it into a factor.
+	/**
+	 * For each variable, make it into factors.
+	 */
+	public List<Factor> factors(Condition evidence) {
+		return factors(evidence, null);
+	}
+
+	/**
+	 * Make the factors of the variables relevant to a query only, see
+	 * relevant, or of all variables if the query is null.
+	 */
+	public List<Factor> factors(Condition evidence, Collection<Variable> query) {
 		List<Factor> factors = new ArrayList<Factor>();
-		for (Variable v : order) {
-			factors.add(new Factor(v, evidence));
-
-			// if the variable is a hidden variable, then perform sum out
-			if (target.node != v && !evidence.mention(v)) {
-				Factor temp = factors.get(0);
-				for (int i = 1; i < factors.size(); i++)
-					temp = temp.join(factors.get(i));
-				temp.eliminate(v);
-				factors.clear();
-				factors.add(temp);
+		for (List<Factor> family : families(evidence, query).values())
+			factors.addAll(family);
+		return factors;
+	}
+
+	/**
+	 * The factors made for each variable, as in factors.
+	 * 
+	 * The factors all come from the same version of the network, read again if
+	 * it was updated meanwhile.
+	 */
+	public Map<Variable, List<Factor>> families(Condition evidence, Collection<Variable> query) {
+		while (true) {
+			long version = network.stableVersion();
+			Set<Variable> relevant = query == null ? null : relevant(query, evidence);
+			Map<Variable, List<Factor>> families = new LinkedHashMap<Variable, List<Factor>>();
+			try {
+				for (Variable v : network.nodes.values())
+					if (relevant == null || relevant.contains(v))
+						families.put(v, Factor.factorsOf(network, v, evidence));
+			} catch (RuntimeException e) {
+				// a family read in the middle of an update is retried
+				if (network.version() == version)
+					throw e;
+				continue;
+			}
+			if (network.version() == version)
+				return families;
+		}
+	}
+
+	/**
+	 * The query and evidence variables with all their ancestors. Any other
+	 * variable is barren: its factors sum to 1 once eliminated, so they can be
+	 * left out of the query.
+	 */
+	public static Set<Variable> relevant(Collection<Variable> query, Condition evidence) {
+		Set<Variable> ret = new HashSet<Variable>();
+		List<Variable> todo = new ArrayList<Variable>(query);
+		for (Event e : evidence)
+			todo.add(e.node);
+		while (!todo.isEmpty()) {
+			Variable v = todo.remove(todo.size() - 1);
+			if (ret.add(v))
+				todo.addAll(v.parents);
+		}
+		return ret;
+	}
+
+	/**
+	 * Choose an elimination order of the variables of the factors but the
+	 * query ones.
+	 * 
+	 * Variables are picked greedily, each time the one whose elimination makes
+	 * the smallest factor. This keeps factors small, and lets the hidden
+	 * variables introduced by decomposed noisy-MAX nodes be eliminated after
+	 * their parents. The order only depends on the scopes of the factors, so
+	 * it can be reused for any evidence on the same variables.
+	 */
+	public static List<Variable> order(List<Factor> factors, Collection<Variable> query) {
+		List<Set<Variable>> scopes = scopes(factors);
+		Set<Variable> hidden = new LinkedHashSet<Variable>();
+		for (Set<Variable> scope : scopes)
+			hidden.addAll(scope);
+		hidden.removeAll(query);
+		return plan(scopes, hidden);
+	}
+
+	/**
+	 * Greedily order the given variables, updating the scopes as if they were
+	 * eliminated, so that further variables can be ordered after them.
+	 */
+	public static List<Variable> plan(List<Set<Variable>> scopes, Collection<Variable> eliminate) {
+		Set<Variable> hidden = new LinkedHashSet<Variable>(eliminate);
+		List<Variable> order = new ArrayList<Variable>();
+		while (!hidden.isEmpty()) {
+			Variable next = null;
+			long best = Long.MAX_VALUE;
+			for (Variable v : hidden) {
+				long size = size(join(v, scopes));
+				if (size < best) {
+					best = size;
+					next = v;
+				}
+			}
+			eliminate(next, scopes);
+			hidden.remove(next);
+			order.add(next);
+		}
+		return order;
+	}
+
+	/**
+	 * The scopes of the factors.
+	 */
+	public static List<Set<Variable>> scopes(List<Factor> factors) {
+		List<Set<Variable>> scopes = new ArrayList<Set<Variable>>();
+		for (Factor f : factors)
+			scopes.add(new HashSet<Variable>(f.variables));
+		return scopes;
+	}
+
+	/**
+	 * Size of the largest factor made when eliminating in the given order.
+	 */
+	public static long largest(List<Factor> factors, List<Variable> order) {
+		List<Set<Variable>> scopes = scopes(factors);
+		long largest = 1;
+		for (Set<Variable> scope : scopes)
+			largest = Math.max(largest, size(scope));
+		for (Variable v : order)
+			largest = Math.max(largest, size(eliminate(v, scopes)));
+		return largest;
+	}
+
+	/**
+	 * Replace the scopes mentioning a variable by their union without it.
+	 * 
+	 * @return the joined scope, before the variable is removed.
+	 */
+	static Set<Variable> eliminate(Variable var, List<Set<Variable>> scopes) {
+		Set<Variable> joined = join(var, scopes);
+		for (Iterator<Set<Variable>> it = scopes.iterator(); it.hasNext();)
+			if (it.next().contains(var))
+				it.remove();
+		Set<Variable> ret = new HashSet<Variable>(joined);
+		joined.remove(var);
+		scopes.add(joined);
+		return ret;
+	}
+
+	/**
+	 * Sum out the variables in order, only joining the factors mentioning the
+	 * variable each time, and return the product of what remains.
+	 */
+	public static Factor eliminate(List<Factor> factors, List<Variable> order) {
+		return product(sumOut(factors, order));
+	}
+
+	/**
+	 * Sum out the variables in order and return the remaining factors. The
+	 * given factors are left unchanged.
+	 */
+	public static List<Factor> sumOut(List<Factor> factors, List<Variable> order) {
+		return sumOut(factors, order, null);
+	}
+
+	/**
+	 * Sum out the variables in order, recording the work done in the
+	 * statistics if not null.
+	 */
+	public static List<Factor> sumOut(List<Factor> factors, List<Variable> order, QueryStatistics stats) {
+		factors = new ArrayList<Factor>(factors);
+		for (Variable next : order) {
+			// Join the factors mentioning the variable, then sum it out.
+			int joined = 0;
+			if (stats != null)
+				for (Factor f : factors)
+					if (f.variables.contains(next))
+						joined++;
+			Factor temp = extract(next, factors);
+			if (temp == null)
+				continue;
+			if (stats != null) {
+				long size = temp.p.size();
+				stats.eliminationOrder.add(next.name);
+				stats.largestFactor = Math.max(stats.largestFactor, size);
+				stats.inducedWidth = Math.max(stats.inducedWidth, temp.variables.size() - 1);
+				// one product per extra factor joined, one sum per entry summed out
+				stats.multiplyAdds += size * (joined - 1) + size;
 			}
+			temp.eliminate(next);
+			factors.add(temp);
 		}
+		return factors;
+	}
 
-		// Point wise product of all remaining factors.
+	/**
+	 * Remove the factors mentioning a variable from the list and return their
+	 * product, or null if there is none.
+	 */
+	public static Factor extract(Variable var, List<Factor> factors) {
+		Factor temp = null;
+		for (Iterator<Factor> it = factors.iterator(); it.hasNext();) {
+			Factor f = it.next();
+			if (f.variables.contains(var)) {
+				temp = temp == null ? f.copy() : temp.join(f);
+				it.remove();
+			}
+		}
+		return temp;
+	}
+
+	/**
+	 * Point wise product of all factors.
+	 */
+	public static Factor product(List<Factor> factors) {
 		Factor result = factors.get(0);
 		for (int i = 1; i < factors.size(); i++)
 			result = result.join(factors.get(i));
+		return result;
+	}
 
-		// Normalize the result factor
-		result.normalise();
-		
-		// Return the result matching the query in string format.
-		return String.format("%.6f", result.p.get(new Condition(Arrays.asList(target))));
+	/**
+	 * Scope of the factor made by joining all scopes mentioning a variable.
+	 */
+	static Set<Variable> join(Variable var, List<Set<Variable>> scopes) {
+		Set<Variable> ret = new HashSet<Variable>();
+		for (Set<Variable> s : scopes)
+			if (s.contains(var))
+				ret.addAll(s);
+		return ret;
+	}
+
+	/**
+	 * Number of entries of a factor over the variables.
+	 */
+	static long size(Collection<Variable> scope) {
+		long size = 1;
+		for (Variable v : scope)
+			size = size > Long.MAX_VALUE / v.domain.size() ? Long.MAX_VALUE : size * v.domain.size();
+		return size;
 	}
 }